@@ -149,27 +149,51 @@ public abstract class SyntacticHeapReader {
 	}
 
 	protected void constructItem(int index, Schema schema, Bytecode[] bytecodes, SyntacticItem[] items) {
-		// FIXME: this fails in the presence of truly recursive items.
 		if (items[index] == null) {
+			// NOTE: use an explicit stack, rather than recursion, since chains of
+			// operands can be arbitrarily long.
+			int[] stack = new int[16];
+			int[] next = new int[16];
+			int depth = 0;
+			stack[0] = index;
 			// This item not yet constructed, therefore construct it!
-			Bytecode bytecode = bytecodes[index];
-			// Destructure bytecode
-			int opcode = bytecode.opcode;
-			int[] operands = bytecode.operands;
-			byte[] data = bytecode.data;
-			// Construct empty item
-			SyntacticItem item = schema.getDescriptor(bytecode.opcode).construct(opcode,
-					new SyntacticItem[operands.length], data);
-			// Store item so can be accessed recursively
-			items[index] = item;
-			// Recursively construct operands
-			for (int i = 0; i != operands.length; ++i) {
-				constructItem(operands[i], schema, bytecodes, items);
-				item.setOperand(i, items[operands[i]]);
+			items[index] = constructEmptyItem(schema, bytecodes[index]);
+			while (depth >= 0) {
+				int[] operands = bytecodes[stack[depth]].operands;
+				int i = next[depth];
+				if (i == operands.length) {
+					depth = depth - 1;
+				} else if (items[operands[i]] == null) {
+					// Operand not yet constructed, hence construct it first. Items
+					// are stored before their operands, so that recursive items can be
+					// accessed.
+					items[operands[i]] = constructEmptyItem(schema, bytecodes[operands[i]]);
+					if (++depth == stack.length) {
+						stack = Arrays.copyOf(stack, depth * 2);
+						next = Arrays.copyOf(next, depth * 2);
+					}
+					stack[depth] = operands[i];
+					next[depth] = 0;
+				} else {
+					items[stack[depth]].setOperand(i, items[operands[i]]);
+					next[depth]++;
+				}
 			}
 		}
 	}
 
+	/**
+	 * Construct an item from a given bytecode whose operands are not yet set.
+	 *
+	 * @param schema
+	 * @param bytecode
+	 * @return
+	 */
+	private SyntacticItem constructEmptyItem(Schema schema, Bytecode bytecode) {
+		return schema.getDescriptor(bytecode.opcode).construct(bytecode.opcode,
+				new SyntacticItem[bytecode.operands.length], bytecode.data);
+	}
+
 	private static class Bytecode {
 		public final int opcode;
 		public final int[] operands;
@@ -16,10 +16,12 @@ package wybs.lang;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.function.Function;
 
+import wybs.util.AbstractCompilationUnit;
 import wybs.util.AbstractCompilationUnit.Value;
 import wyfs.lang.Path;
 import wyfs.util.Trie;
@@ -151,6 +153,100 @@ public interface Build {
 		 * @throws IOException
 		 */
 		public void apply(Collection<Build.Task> tasks) throws IOException;
+
+		/**
+		 * <p>
+		 * Incrementally apply this rule in response to a given set of changes to the
+		 * project since it was last applied. That is, update the tasks previously
+		 * produced by this rule to account for those entries which have been added,
+		 * removed or modified. This allows the cost of refreshing a project to scale
+		 * with the size of the change, rather than with the size of the project.
+		 * </p>
+		 * <p>
+		 * The default implementation simply discards the previous tasks and reapplies
+		 * this rule from scratch.
+		 * </p>
+		 *
+		 * @param delta
+		 *            The changes since this rule was last applied.
+		 * @param tasks
+		 *            The tasks previously produced by this rule, which should be
+		 *            updated in place.
+		 * @throws IOException
+		 */
+		public default void apply(Build.Delta delta, Collection<Build.Task> tasks) throws IOException {
+			tasks.clear();
+			apply(tasks);
+		}
+	}
+
+	/**
+	 * A build rule whose tasks can be executed together in batches, rather than
+	 * individually. This amortises any per-task setup costs (e.g. loading schemas,
+	 * warming up caches, etc) over the tasks in a batch. Tasks in a batch are
+	 * always independent of each other, and are executed using this rule instead
+	 * of their own <code>initialise()</code> method.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface BatchRule extends Rule {
+		/**
+		 * Get the maximum number of tasks to execute in a single batch.
+		 *
+		 * @return
+		 */
+		public int getMaxBatchSize();
+
+		/**
+		 * Execute a batch of tasks produced by this rule.
+		 *
+		 * @param batch
+		 *            The tasks to execute, none of which depend upon each other.
+		 * @param meter
+		 * @return A flag for each task indicating whether or not it succeeded.
+		 * @throws IOException
+		 */
+		public boolean[] execute(List<Build.Task> batch, Build.Meter meter) throws IOException;
+	}
+
+	/**
+	 * Describes a set of changes to the entries of a project, such as those
+	 * reported by a file system watcher in an IDE.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Delta {
+		/**
+		 * Get the entries which have been created.
+		 *
+		 * @return
+		 */
+		public Collection<Path.Entry<?>> getAdded();
+
+		/**
+		 * Get the entries which have been deleted.
+		 *
+		 * @return
+		 */
+		public Collection<Path.Entry<?>> getRemoved();
+
+		/**
+		 * Get the entries whose contents have changed.
+		 *
+		 * @return
+		 */
+		public Collection<Path.Entry<?>> getModified();
+
+		/**
+		 * Check whether there are any changes at all.
+		 *
+		 * @return
+		 */
+		public default boolean isEmpty() {
+			return getAdded().isEmpty() && getRemoved().isEmpty() && getModified().isEmpty();
+		}
 	}
 
 	/**
@@ -199,6 +295,64 @@ public interface Build {
 		 * @return
 		 */
 		public Path.Entry<?> getTarget();
+
+		/**
+		 * Get an estimate of the resources (e.g. memory) required to execute this
+		 * task, relative to other tasks. This allows a build to limit the total
+		 * weight of tasks executing at once. By default, this is the total size of
+		 * the sources (in bytes), though tasks which know better should override it.
+		 *
+		 * @return
+		 */
+		public default long getWeight() {
+			long weight = 0;
+			for (Path.Entry<?> source : getSources()) {
+				weight += source.size();
+			}
+			return weight;
+		}
+	}
+
+	/**
+	 * A task which, once executed, can report precisely which declarations it used
+	 * from each of its sources. This allows fine-grained dependency tracking where,
+	 * when a source changes, the task is only executed again if the signature of
+	 * some declaration it used has changed (see <code>Signatures</code>).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface FineGrainedTask extends Task {
+		/**
+		 * Get the names of declarations used from each source during the most recent
+		 * execution of this task. A source which is not included is treated as used
+		 * in its entirety.
+		 *
+		 * @return
+		 */
+		public Map<Path.Entry<?>, ? extends Collection<AbstractCompilationUnit.Name>> getUsedDeclarations();
+	}
+
+	/**
+	 * Determines the signatures of declarations within compilation units, for the
+	 * purposes of fine-grained dependency tracking. The signature of a declaration
+	 * should capture exactly those aspects upon which its users depend (e.g. the
+	 * parameter and return types of a function, but not its body).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Signatures {
+		/**
+		 * Compute a hash of the signature of a named declaration in a given entry.
+		 * If there is no such declaration, then zero should be returned.
+		 *
+		 * @param entry
+		 * @param name
+		 * @return
+		 * @throws IOException
+		 */
+		public long getSignature(Path.Entry<?> entry, AbstractCompilationUnit.Name name) throws IOException;
 	}
 
 	/**
@@ -229,6 +383,17 @@ public interface Build {
 		 * Current (sub)task has completed.
 		 */
 		public void done();
+
+		/**
+		 * Check whether the build of which this (sub)task is part has been
+		 * cancelled. Long-running tasks should check this periodically and, if it
+		 * holds, abort promptly (e.g. by returning <code>false</code>).
+		 *
+		 * @return
+		 */
+		public default boolean isCancelled() {
+			return false;
+		}
 	}
 
 	public interface Stage {
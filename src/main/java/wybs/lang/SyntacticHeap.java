@@ -68,6 +68,21 @@ public interface SyntacticHeap {
 	 */
 	public int getIndexOf(SyntacticItem item);
 
+	/**
+	 * Determine the index of every item in a given array of syntactic items in
+	 * this heap.
+	 *
+	 * @param items
+	 * @return
+	 */
+	public default int[] indexOf(SyntacticItem[] items) {
+		int[] indices = new int[items.length];
+		for (int i = 0; i != items.length; ++i) {
+			indices[i] = getIndexOf(items[i]);
+		}
+		return indices;
+	}
+
 	/**
 	 * <p>
 	 * Allocate a given syntactic item into this heap. The item must not already
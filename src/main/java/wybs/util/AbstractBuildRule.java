@@ -17,6 +17,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -33,8 +36,17 @@ import wyfs.util.Pair;
  * encountered.
  * </p>
  * <p>
- * <b>NOTE</b>: instances of this class are immutable, although objects they
- * reference may not be (e.g. builders).
+ * This rule remembers the set of matching files from when it was last applied,
+ * such that it can be reapplied incrementally without enumerating the source
+ * root again. Only tasks for those matches which have been added or removed
+ * are created or dropped, whilst all other tasks are retained as is. Thus,
+ * changes which only modify the contents of matching files leave the tasks
+ * unchanged.
+ * </p>
+ * <p>
+ * <b>NOTE</b>: instances of this class are immutable (aside from the matches
+ * remembered for incremental application), although objects they reference may
+ * not be (e.g. builders).
  * </p>
  *
  * @author David J. Pearce
@@ -60,6 +72,12 @@ public abstract class AbstractBuildRule<S,T> implements Build.Rule {
 	 */
 	protected final Content.Filter<S> excludes;
 
+	/**
+	 * The set of matching files from when this rule was last applied, or
+	 * <code>null</code> if it has not yet been applied.
+	 */
+	private LinkedHashSet<Path.Entry<S>> matches;
+
 	/**
 	 * Construct a standard build rule.
 	 *
@@ -97,10 +115,99 @@ public abstract class AbstractBuildRule<S,T> implements Build.Rule {
 			}
 			matches.add(e);
 		}
+		this.matches = new LinkedHashSet<>(matches);
 		// process matches according to concrete strategy
 		apply(matches, tasks);
 	}
 
+	@Override
+	@SuppressWarnings("unchecked")
+	public void apply(Build.Delta delta, Collection<Build.Task> tasks) throws IOException {
+		if (matches == null) {
+			// Not previously applied, so nothing to update.
+			tasks.clear();
+			apply(tasks);
+			return;
+		}
+		// Matches for which tasks must be (re)created
+		LinkedHashSet<Path.Entry<S>> affected = new LinkedHashSet<>();
+		// Drop tasks for removed matches
+		Set<Path.Entry<?>> removed = new HashSet<>();
+		for (Path.Entry<?> e : delta.getRemoved()) {
+			if (matches.remove(e)) {
+				removed.add(e);
+			}
+		}
+		if (!removed.isEmpty()) {
+			Iterator<Build.Task> iter = tasks.iterator();
+			while (iter.hasNext()) {
+				List<Path.Entry<?>> sources = iter.next().getSources();
+				if (!Collections.disjoint(sources, removed)) {
+					iter.remove();
+					// Other matches consumed by this task still need building
+					for (Path.Entry<?> s : sources) {
+						if (matches.contains(s)) {
+							affected.add((Path.Entry<S>) s);
+						}
+					}
+				}
+			}
+		}
+		// Create tasks for added matches
+		for (Path.Entry<?> e : delta.getAdded()) {
+			Path.Entry<S> m = match(e);
+			if (m != null && matches.add(m)) {
+				affected.add(m);
+			}
+		}
+		if (affected.isEmpty()) {
+			// Existing tasks are unaffected
+			return;
+		}
+		// process affected matches according to concrete strategy
+		ArrayList<Build.Task> fresh = new ArrayList<>();
+		apply(new ArrayList<>(affected), fresh);
+		// NOTE: a rule which maps several matches to a single target may produce a
+		// task for a target which already has one. In such case, the only option is
+		// to reapply this rule from scratch.
+		Set<Path.Entry<?>> targets = new HashSet<>();
+		for (Build.Task task : tasks) {
+			targets.add(task.getTarget());
+		}
+		for (Build.Task task : fresh) {
+			if (targets.contains(task.getTarget())) {
+				tasks.clear();
+				apply(new ArrayList<>(matches), tasks);
+				return;
+			}
+		}
+		tasks.addAll(fresh);
+	}
+
+	/**
+	 * Determine whether a given entry is matched by this rule, returning it
+	 * appropriately typed if so, or <code>null</code> otherwise. A matching entry
+	 * must be reachable from the source root, must match the includes filter and
+	 * must not match the excludes filter.
+	 *
+	 * @param e
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private Path.Entry<S> match(Path.Entry<?> e) throws IOException {
+		Content.Type<S> ct = (Content.Type<S>) e.contentType();
+		if (includes != null && !includes.matches(e.id(), ct)) {
+			return null;
+		} else if (excludes != null && excludes.matches(e.id(), ct)) {
+			return null;
+		} else if (source.get(e.id(), ct) != e) {
+			// Not part of the source root
+			return null;
+		}
+		return (Path.Entry<S>) e;
+	}
+
 	/**
 	 * Process a given set of matches according to this rule. For example, we may
 	 * map each source to a corresponding binary target; or, we may map several (or
@@ -17,6 +17,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +36,35 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	protected int root;
 
+	/**
+	 * Maps each item in this heap to those which refer to it. This is constructed
+	 * lazily, when parents are first queried, and is <code>null</code> before
+	 * then. Once constructed, it is kept up-to-date as items are allocated and
+	 * their operands changed.
+	 */
+	private ParentIndex parents;
+
+	/**
+	 * Maps each opcode, and each class of item, to those items in this heap which
+	 * have it. Like the parent index, this is constructed lazily and then kept
+	 * up-to-date.
+	 */
+	private KindIndex kinds;
+
+	/**
+	 * The position of each item in a pre-order traversal from the root, or
+	 * <code>-1</code> for unreachable items. This is <code>null</code> if not yet
+	 * determined, and is discarded whenever this heap changes.
+	 */
+	private int[] order;
+
+	/**
+	 * Maps the structure of each interned item to that item, such that
+	 * structurally equal items are only allocated once. This is <code>null</code>
+	 * when interning is disabled.
+	 */
+	private HashMap<Key, SyntacticItem> interned;
+
 	public AbstractSyntacticHeap() {
 
 	}
@@ -65,6 +95,7 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	@Override
 	public void setRootItem(SyntacticItem item) {
 		this.root = allocate(item).getIndex();
+		this.order = null;
 	}
 
 	@Override
@@ -74,23 +105,62 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 
 	@Override
 	public int getIndexOf(SyntacticItem item) {
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			if (syntacticItems.get(i) == item) {
-				return i;
+		int index = lookup(item);
+		if (index < 0) {
+			// Not allocated to this heap, but may still be present
+			for (int i = 0; i != syntacticItems.size(); ++i) {
+				if (syntacticItems.get(i) == item) {
+					return i;
+				}
 			}
+			throw new IllegalArgumentException("invalid syntactic item");
 		}
-		throw new IllegalArgumentException("invalid syntactic item");
+		return index;
 	}
 
-	public <T extends SyntacticItem> List<T> getSyntacticItems(Class<T> kind) {
-		ArrayList<T> matches = new ArrayList<>();
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem item = syntacticItems.get(i);
-			if (kind.isInstance(item)) {
-				matches.add((T) item);
+	@Override
+	public int[] indexOf(SyntacticItem[] items) {
+		int[] indices = new int[items.length];
+		IdentityHashMap<SyntacticItem, Integer> others = null;
+		for (int i = 0; i != items.length; ++i) {
+			int index = lookup(items[i]);
+			if (index < 0) {
+				if (others == null) {
+					// Map every item to its index, so each lookup is cheap
+					others = new IdentityHashMap<>();
+					for (int j = 0; j != syntacticItems.size(); ++j) {
+						others.put(syntacticItems.get(j), j);
+					}
+				}
+				Integer j = others.get(items[i]);
+				if (j == null) {
+					throw new IllegalArgumentException("invalid syntactic item");
+				}
+				index = j;
 			}
+			indices[i] = index;
 		}
-		return matches;
+		return indices;
+	}
+
+	/**
+	 * Get all items in this heap of a given kind, in the order they appear.
+	 *
+	 * @param kind
+	 * @return
+	 */
+	public <T extends SyntacticItem> List<T> getSyntacticItems(Class<T> kind) {
+		return (List<T>) toList(getKindIndex().get(kind));
+	}
+
+	/**
+	 * Get all items in this heap with a given opcode, in the order they appear.
+	 *
+	 * @param opcode
+	 * @return
+	 */
+	public List<SyntacticItem> getSyntacticItems(int opcode) {
+		return toList(getKindIndex().get(opcode));
 	}
 
 	/**
@@ -103,15 +173,10 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getParent(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem parent = syntacticItems.get(i);
-			if(kind.isInstance(parent)) {
-				for(int j=0;j!=parent.size();++j) {
-					if(parent.get(j) == child) {
-						return (T) parent;
-					}
-				}
+		for (int p : getParentIndices(child)) {
+			SyntacticItem parent = syntacticItems.get(p);
+			if (kind.isInstance(parent)) {
+				return (T) parent;
 			}
 		}
 		// no match
@@ -121,14 +186,10 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	@Override
 	public <T extends SyntacticItem> List<T> getParents(SyntacticItem child, Class<T> kind) {
 		List<T> parents = new ArrayList<>();
-		for (int i = 0; i != syntacticItems.size(); ++i) {
-			SyntacticItem parent = syntacticItems.get(i);
-			if(kind.isInstance(parent)) {
-				for(int j=0;j!=parent.size();++j) {
-					if(parent.get(j) == child) {
-						parents.add((T) parent);
-					}
-				}
+		for (int p : getParentIndices(child)) {
+			SyntacticItem parent = syntacticItems.get(p);
+			if (kind.isInstance(parent)) {
+				parents.add((T) parent);
 			}
 		}
 		//
@@ -145,34 +206,61 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	@Override
 	public <T extends SyntacticItem> T getAncestor(SyntacticItem child, Class<T> kind) {
-		// FIXME: this could be optimised a *lot*
 		if (kind.isInstance(child)) {
 			return (T) child;
-		} else {
-			for (int i = 0; i != syntacticItems.size(); ++i) {
-				SyntacticItem parent = syntacticItems.get(i);
-				for (int j = 0; j != parent.size(); ++j) {
-					// Don't follow cross-references
-					if (parent.get(j) == child && !(parent instanceof AbstractCompilationUnit.Ref)) {
-						// FIXME: this is not specifically efficient. It would
-						// be helpful if SyntacticItems actually contained
-						// references to their parent items.
-						T tmp = getAncestor(parent, kind);
-						if (tmp != null) {
-							return tmp;
-						}
-					}
+		}
+		// Search parents depth-first using an explicit stack. Since a search from
+		// any ancestor always gives the same outcome, none is searched twice.
+		BitSet visited = new BitSet();
+		int[][] stack = new int[16][];
+		int[] next = new int[16];
+		int depth = 0;
+		stack[0] = getParentIndices(child);
+		while (depth >= 0) {
+			int[] ps = stack[depth];
+			int i = next[depth]++;
+			if (i == ps.length) {
+				depth = depth - 1;
+			} else if (!visited.get(ps[i])) {
+				visited.set(ps[i]);
+				SyntacticItem parent = syntacticItems.get(ps[i]);
+				// Don't follow cross-references
+				if (parent instanceof AbstractCompilationUnit.Ref) {
+					continue;
+				} else if (kind.isInstance(parent)) {
+					return (T) parent;
+				} else if (++depth == stack.length) {
+					stack = Arrays.copyOf(stack, depth * 2);
+					next = Arrays.copyOf(next, depth * 2);
 				}
+				stack[depth] = getParentIndices(parent);
+				next[depth] = 0;
 			}
-			// no match
-			return null;
 		}
+		// no match
+		return null;
 	}
 
 	@Override
 	public <T extends SyntacticItem> List<T> findAll(Class<T> kind) {
 		ArrayList<T> matches = new ArrayList<>();
-		findAll(getRootItem(), kind, matches, new BitSet());
+		BitSet candidates = getKindIndex().get(kind);
+		if (!candidates.isEmpty()) {
+			int[] positions = getOrder();
+			// Order reachable candidates by their position in the traversal
+			BitSet reached = new BitSet();
+			int[] sequence = new int[syntacticItems.size()];
+			for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+				int position = positions[i];
+				if (position >= 0) {
+					reached.set(position);
+					sequence[position] = i;
+				}
+			}
+			for (int i = reached.nextSetBit(0); i >= 0; i = reached.nextSetBit(i + 1)) {
+				matches.add((T) syntacticItems.get(sequence[i]));
+			}
+		}
 		return matches;
 	}
 
@@ -186,6 +274,56 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		return (T) new Allocator(this).allocate(item);
 	}
 
+	/**
+	 * <p>
+	 * Enable or disable interning for this heap. When enabled, an item being
+	 * allocated which is structurally equal to an interned item already in this
+	 * heap is not allocated. Instead, the existing item is used in its place.
+	 * Items are structurally equal when they have the same class, opcode and data,
+	 * and their operands are identical. This reduces the size of heaps which
+	 * would otherwise contain many copies of the same identifiers, names or
+	 * constants.
+	 * </p>
+	 * <p>
+	 * <b>NOTE:</b> interned items are shared and, hence, replacing an interned
+	 * item replaces every use of it. If the operands of an interned item are
+	 * modified (e.g. by <code>replace()</code>), then it is interned according to
+	 * its new structure. See <code>isInternable()</code> for which items are
+	 * interned.
+	 * </p>
+	 * <p>
+	 * <b>NOTE:</b> an item is located in its source file via the
+	 * <code>Attribute.Span</code>s which refer to it. Since an interned item is
+	 * shared by every occurrence, it may be referred to by several spans and
+	 * errors reported against it (see <code>SyntacticException</code>) will
+	 * identify the location of just one of them (typically, the first). Heaps
+	 * which require precise locations for identifiers should either leave
+	 * interning disabled, or exclude them via <code>isInternable()</code>.
+	 * </p>
+	 *
+	 * @param flag
+	 */
+	public void setInterning(boolean flag) {
+		if (!flag) {
+			interned = null;
+		} else if (interned == null) {
+			interned = intern(syntacticItems);
+		}
+	}
+
+	/**
+	 * Determine whether a given item can be interned. By default, this includes
+	 * items without operands (e.g. identifiers and constants) and names, since
+	 * these are not modified once constructed. Heaps which have other such items
+	 * can extend this.
+	 *
+	 * @param item
+	 * @return
+	 */
+	protected boolean isInternable(SyntacticItem item) {
+		return item.size() == 0 || item instanceof AbstractCompilationUnit.Name;
+	}
+
 	/**
 	 * Force a garbage collection event. This removes all items which are unreachable from the root, and compacts those remaining down.
 	 *
@@ -210,6 +348,17 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 		for (int i = syntacticItems.size(); i > count; i = i - 1) {
 			syntacticItems.remove(i - 1);
 		}
+		// Indices have changed, hence indices must be reconstructed
+		if (parents != null) {
+			parents = new ParentIndex(this);
+		}
+		if (kinds != null) {
+			kinds = new KindIndex(syntacticItems);
+		}
+		if (interned != null) {
+			interned = intern(syntacticItems);
+		}
+		order = null;
 		// Indicate whether anything changed
 		return count < syntacticItems.size();
 	}
@@ -255,45 +404,274 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	// HELPERS
 	// ========================================================================
 
-	private static <T extends SyntacticItem> void findAll(SyntacticItem item, Class<T> kind, ArrayList<T> matches,
-			BitSet visited) {
-		int index = item.getIndex();
-		// Check whether already visited this item
-		if (!visited.get(index)) {
-			visited.set(index);
-			// Check whether this item has a marker associated with it.
-			if (kind.isInstance(item)) {
-				// At least one marked assocaited with item.
-				matches.add((T) item);
+	/**
+	 * Get the indices of all items in this heap which refer to a given item, in
+	 * ascending order. An item which refers to the child more than once appears
+	 * that many times.
+	 *
+	 * @param child
+	 * @return
+	 */
+	private int[] getParentIndices(SyntacticItem child) {
+		int index = lookup(child);
+		if (index < 0) {
+			// Foreign or swept items are not indexed
+			return scanParents(child);
+		} else if (parents == null || parents.size != syntacticItems.size()) {
+			// NOTE: size differs if items were added other than by allocation
+			parents = new ParentIndex(this);
+		}
+		return parents.get(index);
+	}
+
+	/**
+	 * Construct the table of interned items from those internable items in a
+	 * given list. Where there are several equal items, the first is interned.
+	 *
+	 * @param items
+	 * @return
+	 */
+	private HashMap<Key, SyntacticItem> intern(List<SyntacticItem> items) {
+		HashMap<Key, SyntacticItem> table = new HashMap<>();
+		for (SyntacticItem item : items) {
+			if (isInternable(item)) {
+				table.putIfAbsent(new Key(item, operands(item)), item);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Signal that the structure of an item in this heap has changed, such that it
+	 * is no longer interned under its previous key. If it was interned, then it is
+	 * interned again under its new structure (unless an equal item is already).
+	 *
+	 * @param item
+	 * @param before
+	 *            The key of this item prior to the change.
+	 */
+	private void reintern(SyntacticItem item, Key before) {
+		if (interned.get(before) == item) {
+			interned.remove(before);
+			interned.putIfAbsent(new Key(item, operands(item)), item);
+		}
+	}
+
+	/**
+	 * Get the operands of a given item as an array.
+	 *
+	 * @param item
+	 * @return
+	 */
+	private static SyntacticItem[] operands(SyntacticItem item) {
+		SyntacticItem[] operands = new SyntacticItem[item.size()];
+		for (int i = 0; i != operands.length; ++i) {
+			operands[i] = item.get(i);
+		}
+		return operands;
+	}
+
+	/**
+	 * Get the index of items by kind, constructing it if necessary.
+	 *
+	 * @return
+	 */
+	private KindIndex getKindIndex() {
+		if (kinds == null || kinds.size != syntacticItems.size()) {
+			// NOTE: size differs if items were added other than by allocation
+			kinds = new KindIndex(syntacticItems);
+		}
+		return kinds;
+	}
+
+	/**
+	 * Get the position of every item in a pre-order traversal from the root,
+	 * determining this if necessary. This traversal matches that of
+	 * <code>findAll()</code>.
+	 *
+	 * @return
+	 */
+	private int[] getOrder() {
+		if (order == null || order.length != syntacticItems.size() || order[root] != 0) {
+			int[] positions = new int[syntacticItems.size()];
+			Arrays.fill(positions, -1);
+			int[] count = new int[1];
+			SyntacticHeapWalker.walk(getRootItem(), (item) -> {
+				int index = item.getIndex();
+				if (positions[index] < 0) {
+					positions[index] = count[0]++;
+					return true;
+				}
+				return false;
+			});
+			order = positions;
+		}
+		return order;
+	}
+
+	/**
+	 * Convert a set of item indices into the corresponding list of items.
+	 *
+	 * @param indices
+	 * @return
+	 */
+	private List<SyntacticItem> toList(BitSet indices) {
+		ArrayList<SyntacticItem> items = new ArrayList<>(indices.cardinality());
+		for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+			items.add(syntacticItems.get(i));
+		}
+		return items;
+	}
+
+	/**
+	 * Determine the index of a given item using that recorded in the item itself.
+	 * This is only used when the item is allocated to this heap, and is actually
+	 * found at that index.
+	 *
+	 * @param item
+	 * @return The index of the item, or <code>-1</code> if not determined.
+	 */
+	private int lookup(SyntacticItem item) {
+		if (item != null && item.getHeap() == this) {
+			int index = item.getIndex();
+			if (index < syntacticItems.size() && syntacticItems.get(index) == item) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Determine the parents of a given item by examining every item in this heap.
+	 *
+	 * @param child
+	 * @return
+	 */
+	private int[] scanParents(SyntacticItem child) {
+		int[] matches = new int[0];
+		for (int i = 0; i != syntacticItems.size(); ++i) {
+			SyntacticItem parent = syntacticItems.get(i);
+			for (int j = 0; j != parent.size(); ++j) {
+				if (parent.get(j) == child) {
+					matches = Arrays.copyOf(matches, matches.length + 1);
+					matches[matches.length - 1] = i;
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Signal that an operand of a given item in this heap has changed. This keeps
+	 * the parent index (if constructed) and the table of interned items (if
+	 * interning) up-to-date, and discards the traversal order since this may no
+	 * longer be accurate.
+	 *
+	 * @param item
+	 *            The item whose operand has changed.
+	 * @param ith
+	 *            The index of the operand which has changed.
+	 * @param before
+	 *            The previous operand (which may be <code>null</code>).
+	 */
+	void updateOperand(SyntacticItem item, int ith, SyntacticItem before) {
+		updateParents(item, before, item.get(ith));
+		if (interned != null && isInternable(item)) {
+			SyntacticItem[] operands = operands(item);
+			operands[ith] = before;
+			reintern(item, new Key(item.getClass(), item.getOpcode(), item.getData(), operands));
+		}
+	}
+
+	private void updateParents(SyntacticItem item, SyntacticItem before, SyntacticItem after) {
+		order = null;
+		ParentIndex index = parents;
+		int p = lookup(item);
+		if (index != null && p >= 0) {
+			// NOTE: items no longer in this heap (e.g. swept) are not indexed
+			if (p >= index.size || !index.remove(before, p) || !index.add(after, p)) {
+				// Cannot update index, so discard it
+				parents = null;
+			}
+		}
+	}
+
+	/**
+	 * Signal that the opcode of a given item in this heap has changed. This keeps
+	 * the index of items by kind (if constructed) and the table of interned items
+	 * (if interning) up-to-date.
+	 *
+	 * @param item
+	 * @param before
+	 *            The previous opcode.
+	 */
+	void updateKinds(SyntacticItem item, int before) {
+		int index = lookup(item);
+		if (kinds != null && index >= 0) {
+			// NOTE: items no longer in this heap (e.g. swept) are not indexed
+			if (index < kinds.size) {
+				kinds.opcodes[before].clear(index);
+				kinds.add(index, item);
+			} else {
+				kinds = null;
 			}
-			// Recursive children looking for other syntactic markers
-			for (int i = 0; i != item.size(); ++i) {
-				findAll(item.get(i), kind, matches, visited);
+		}
+		if (interned != null && isInternable(item)) {
+			reintern(item, new Key(item.getClass(), before, item.getData(), operands(item)));
+		}
+	}
+
+	/**
+	 * Signal that a new item has been allocated at the end of this heap.
+	 *
+	 * @param index
+	 */
+	private void allocated(int index) {
+		SyntacticItem item = syntacticItems.get(index);
+		order = null;
+		if (parents != null) {
+			if (parents.size == index) {
+				parents.size++;
+			} else {
+				parents = null;
+			}
+		}
+		if (kinds != null) {
+			if (kinds.size == index) {
+				kinds.add(index, item);
+				kinds.size++;
+			} else {
+				kinds = null;
 			}
 		}
 	}
 
 	private static <T extends SyntacticItem> void replaceAll(SyntacticItem item, T from, T to, BitSet visited) {
-		int index = item.getIndex();
-		// Check whether already visited this item
-		if (item != from && !visited.get(index)) {
-			// Record that have now visited
-			visited.set(index);
-			// Attempt the replacement
-			SyntacticItem[] children = item.getAll();
-			if(children != null) {
-				for (int i = 0; i != children.length; ++i) {
-					// Apply the replacement.
-					if (children[i] == from) {
+		SyntacticHeapWalker.walk(item, new SyntacticHeapWalker.Visitor() {
+			@Override
+			public boolean enter(SyntacticItem item) {
+				int index = item.getIndex();
+				// Check whether already visited this item
+				if (item == from || visited.get(index)) {
+					return false;
+				}
+				// Record that have now visited
+				visited.set(index);
+				return true;
+			}
+
+			@Override
+			public void exit(SyntacticItem item) {
+				// Attempt the replacement. NOTE: operands being replaced are not
+				// traversed, since enter() rejects them.
+				for (int i = 0; i != item.size(); ++i) {
+					if (item.get(i) == from) {
 						// Time for replacement!
 						item.setOperand(i, to);
-					} else {
-						// Recursively traverse children.
-						replaceAll(children[i],from,to,visited);
 					}
 				}
 			}
-		}
+		});
 	}
 
 	/**
@@ -305,19 +683,16 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	public static BitSet findReachable(SyntacticItem item, BitSet visited) {
-		int index = item.getIndex();
-		// Check whether already visited this item
-		if (!visited.get(index)) {
-			visited.set(index);
-			if(item instanceof AbstractCompilationUnit.Ref) {
-				// NOTE: do not traverse references as these are non-owning pointers.
-			} else {
-				// Recursive children looking for other syntactic markers
-				for (int i = 0; i != item.size(); ++i) {
-					findReachable(item.get(i), visited);
-				}
+		SyntacticHeapWalker.walk(item, (i) -> {
+			int index = i.getIndex();
+			// Check whether already visited this item
+			if (visited.get(index)) {
+				return false;
 			}
-		}
+			visited.set(index);
+			// NOTE: do not traverse references as these are non-owning pointers.
+			return !(i instanceof AbstractCompilationUnit.Ref);
+		});
 		return visited;
 	}
 
@@ -333,50 +708,90 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 * @return
 	 */
 	private static <T extends SyntacticItem> T clone(T item, Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = new SyntacticItem[item.size()];
-			for (int i = 0; i != operands.length; ++i) {
-				SyntacticItem operand = item.get(i);
-				if (operand != null) {
-					operands[i] = clone(operand, mapping);
+		IdentityHashMap<SyntacticItem, SyntacticItem> active = new IdentityHashMap<>();
+		SyntacticHeapWalker.walk(item, new SyntacticHeapWalker.Visitor() {
+			@Override
+			public boolean enter(SyntacticItem item) {
+				// Only items not previously cloned need to be cloned
+				return mapping.get(item) == null && active.put(item, item) == null;
+			}
+
+			@Override
+			public void exit(SyntacticItem item) {
+				// All operands now cloned. Therefore, create new item
+				SyntacticItem[] operands = new SyntacticItem[item.size()];
+				for (int i = 0; i != operands.length; ++i) {
+					SyntacticItem operand = item.get(i);
+					if (operand != null) {
+						operands[i] = cloned(operand, mapping);
+					}
 				}
+				// Now, create new item and store that for later.
+				mapping.put(item, item.clone(operands));
 			}
-			// Now, create new item and store that for later.
-			clonedItem = item.clone(operands);
-			mapping.put(item, clonedItem);
-		}
-		return (T) clonedItem;
+		});
+		return (T) mapping.get(item);
 	}
 
 	public static <T extends SyntacticItem> T cloneOnly(T item, Map<SyntacticItem, SyntacticItem> mapping, Class<?> clazz) {
-		SyntacticItem clonedItem = mapping.get(item);
-		if (clonedItem == null) {
-			// Item not previously cloned. Therefore, first create new item
-			SyntacticItem[] operands = item.getAll();
-			SyntacticItem[] nOperands = operands;
-			if (operands != null) {
-				for (int i = 0; i != operands.length; ++i) {
-					SyntacticItem operand = operands[i];
-					if (operand != null) {
-						SyntacticItem nOperand = cloneOnly(operand, mapping,clazz);
-						if(nOperand != operand && operands == nOperands) {
-							nOperands = Arrays.copyOf(operands, operands.length);
+		// Maps every item traversed to its (possibly unchanged) result
+		IdentityHashMap<SyntacticItem, SyntacticItem> results = new IdentityHashMap<>();
+		SyntacticHeapWalker.walk(item, new SyntacticHeapWalker.Visitor() {
+			@Override
+			public boolean enter(SyntacticItem item) {
+				if (results.containsKey(item)) {
+					return false;
+				}
+				SyntacticItem clonedItem = mapping.get(item);
+				// NOTE: null marks item as under construction
+				results.put(item, clonedItem);
+				return clonedItem == null;
+			}
+
+			@Override
+			public void exit(SyntacticItem item) {
+				SyntacticItem[] operands = item.getAll();
+				SyntacticItem[] nOperands = operands;
+				if (operands != null) {
+					for (int i = 0; i != operands.length; ++i) {
+						SyntacticItem operand = operands[i];
+						if (operand != null) {
+							SyntacticItem nOperand = cloned(operand, results);
+							if (nOperand != operand && operands == nOperands) {
+								nOperands = Arrays.copyOf(operands, operands.length);
+							}
+							nOperands[i] = nOperand;
 						}
-						nOperands[i] = nOperand;
 					}
 				}
+				// Now, create new item and store that for later.
+				if (nOperands != operands || clazz.isInstance(item)) {
+					SyntacticItem clonedItem = item.clone(nOperands);
+					mapping.put(item, clonedItem);
+					results.put(item, clonedItem);
+				} else {
+					results.put(item, item);
+				}
 			}
-			// Now, create new item and store that for later.
-			if(nOperands != operands || clazz.isInstance(item)) {
-				clonedItem = item.clone(nOperands);
-				mapping.put(item, clonedItem);
-			} else {
-				clonedItem = item;
-			}
+		});
+		return (T) results.get(item);
+	}
+
+	/**
+	 * Get the item to which a given operand has been mapped. This is only
+	 * missing if the operand is still being processed which, since operands are
+	 * always processed first, indicates a cyclic structure.
+	 *
+	 * @param operand
+	 * @param mapping
+	 * @return
+	 */
+	private static SyntacticItem cloned(SyntacticItem operand, Map<SyntacticItem, SyntacticItem> mapping) {
+		SyntacticItem r = mapping.get(operand);
+		if (r == null) {
+			throw new IllegalArgumentException("cannot process cyclic structure");
 		}
-		return (T) clonedItem;
+		return r;
 	}
 
 	/**
@@ -426,60 +841,62 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 	 */
 	private static SyntacticItem substitute(SyntacticItem item, SyntacticItem from, SyntacticItem to,
 			Map<SyntacticItem, SyntacticItem> mapping) {
-		SyntacticItem sItem = mapping.get(item);
-		if (sItem != null) {
-			// We've previously substituted this item already to produce a
-			// potentially updated item. Therefore, simply return that item to
-			// ensure the original aliasing structure of the ancestor(s) is
-			// properly preserved.
-			return sItem;
-		} else if (item == from) {
-			// We've matched the item being replaced, therefore return the item
-			// to which it is being replaced.
-			return to;
-		} else {
-			SyntacticItem nItem = item;
-			// We need to recursively descend into children of this item looking
-			// for the item to replace. The challenge here is that we need to
-			// ensure the original item is preserved as is if there is no
-			// change.
-			SyntacticItem[] children = item.getAll();
-			// Initially, this will alias children. In the event of a child
-			// which is actually updated, then this will refer to a new array.
-			// That will be the signal that we need to create a new item to
-			// return.
-			SyntacticItem[] nChildren = children;
-			if (children != null) {
-				for (int i = 0; i != children.length; ++i) {
-					SyntacticItem child = children[i];
-					// Check for null, since we don't want to try and substitute
-					// into null.
-					if (child != null) {
-						// Perform the substitution in the given child
-						SyntacticItem nChild = substitute(child, from, to, mapping);
-						// Check whether anything was actually changed by the
-						// substitution.
-						if (nChild != child && children == nChildren) {
-							// Yes, the child changed and we haven't already
-							// cloned the children array. Hence, we'd better
-							// clone it now to make sure that the original item
-							// is preserved.
-							nChildren = Arrays.copyOf(children, children.length);
+		// Any occurrence of the item being replaced maps to the item to which it is
+		// being replaced.
+		mapping.put(from, to);
+		IdentityHashMap<SyntacticItem, SyntacticItem> active = new IdentityHashMap<>();
+		SyntacticHeapWalker.walk(item, new SyntacticHeapWalker.Visitor() {
+			@Override
+			public boolean enter(SyntacticItem item) {
+				// If we've previously substituted this item already then simply
+				// reuse that to ensure the original aliasing structure of the
+				// ancestor(s) is properly preserved.
+				return !mapping.containsKey(item) && active.put(item, item) == null;
+			}
+
+			@Override
+			public void exit(SyntacticItem item) {
+				SyntacticItem nItem = item;
+				// All children have now been substituted. The challenge here is
+				// that we need to ensure the original item is preserved as is if
+				// there is no change.
+				SyntacticItem[] children = item.getAll();
+				// Initially, this will alias children. In the event of a child
+				// which is actually updated, then this will refer to a new array.
+				// That will be the signal that we need to create a new item to
+				// return.
+				SyntacticItem[] nChildren = children;
+				if (children != null) {
+					for (int i = 0; i != children.length; ++i) {
+						SyntacticItem child = children[i];
+						// Check for null, since we don't want to try and substitute
+						// into null.
+						if (child != null) {
+							SyntacticItem nChild = cloned(child, mapping);
+							// Check whether anything was actually changed by the
+							// substitution.
+							if (nChild != child && children == nChildren) {
+								// Yes, the child changed and we haven't already
+								// cloned the children array. Hence, we'd better
+								// clone it now to make sure that the original item
+								// is preserved.
+								nChildren = Arrays.copyOf(children, children.length);
+							}
+							nChildren[i] = nChild;
 						}
-						nChildren[i] = nChild;
+					}
+					// Now, clone the original item if necessary. This is only
+					// necessary if the children array as been updated in some way.
+					if (children != nChildren) {
+						// Create the new item which, at this point, will be
+						// detached.
+						nItem = item.clone(nChildren);
 					}
 				}
-				// Now, clone the original item if necessary. This is only
-				// necessary if the children array as been updated in some way.
-				if (children != nChildren) {
-					// Create the new item which, at this point, will be
-					// detached.
-					nItem = item.clone(nChildren);
-				}
+				mapping.put(item, nItem);
 			}
-			mapping.put(item, nItem);
-			return nItem;
-		}
+		});
+		return mapping.get(item);
 	}
 
 	public static class Allocator implements SyntacticHeap.Allocator<AbstractSyntacticHeap> {
@@ -493,34 +910,392 @@ public abstract class AbstractSyntacticHeap implements SyntacticHeap {
 
 		@Override
 		public SyntacticItem allocate(SyntacticItem item) {
-			SyntacticHeap parent = item.getHeap();
+			SyntacticHeapWalker.walk(item, new SyntacticHeapWalker.Visitor() {
+				@Override
+				public boolean enter(SyntacticItem item) {
+					if (map.get(item) != null || item.getHeap() == heap) {
+						// Item already allocated to this heap, hence nothing to do.
+						return false;
+					} else if (heap.interned == null || !heap.isInternable(item)) {
+						map.put(item, create(item));
+					}
+					// NOTE: an internable item is not allocated until its children
+					// are, since only then can it be compared with interned items.
+					// Item not allocated to this heap. Therefore, allocate all
+					// children.
+					return true;
+				}
+
+				@Override
+				public void exit(SyntacticItem item) {
+					SyntacticItem[] children = new SyntacticItem[item.size()];
+					for (int i = 0; i != children.length; ++i) {
+						SyntacticItem child = item.get(i);
+						children[i] = (child != null) ? resolve(child) : null;
+					}
+					SyntacticItem nItem = map.get(item);
+					if (nItem == null) {
+						// Internable item, so check for an equal interned item
+						Key key = new Key(item, children);
+						nItem = heap.interned.get(key);
+						if (nItem != null) {
+							map.put(item, nItem);
+							return;
+						}
+						nItem = create(item);
+						heap.interned.put(key, nItem);
+						map.put(item, nItem);
+					}
+					for (int i = 0; i != children.length; ++i) {
+						nItem.setOperand(i, children[i]);
+					}
+				}
+			});
+			return resolve(item);
+		}
+
+		/**
+		 * Allocate a copy of a given item into this heap, whose operands are not yet
+		 * set.
+		 *
+		 * @param item
+		 * @return
+		 */
+		private SyntacticItem create(SyntacticItem item) {
+			// Determine index for allocation
+			int index = heap.size();
+			// Clone item prior to allocation
+			SyntacticItem nItem = item.clone(new SyntacticItem[item.size()]);
+			// Allocate item
+			heap.syntacticItems.add(nItem);
+			// ... and allocate item itself
+			nItem.allocate(heap, index);
+			heap.allocated(index);
+			return nItem;
+		}
+
+		/**
+		 * Get the item allocated to this heap for a given item.
+		 *
+		 * @param item
+		 * @return
+		 */
+		private SyntacticItem resolve(SyntacticItem item) {
 			SyntacticItem allocated = map.get(item);
-			if (allocated != null) {
-				return allocated;
-			} else if (parent == heap) {
-				// Item already allocated to this heap, hence nothing to do.
-				return item;
+			return (allocated != null) ? allocated : item;
+		}
+	};
+
+	/**
+	 * <p>
+	 * A compact index from each item in a heap to those items which refer to it
+	 * (i.e. its parents). This is stored in compressed sparse row form, where the
+	 * parents of the item at index <code>i</code> are found in
+	 * <code>edges[offsets[i]]</code> up to <code>edges[offsets[i+1]]</code>.
+	 * </p>
+	 * <p>
+	 * Since this form cannot be extended in place, edges added after construction
+	 * are held separately for each child, whilst removed edges are simply marked
+	 * with <code>-1</code>. Once the number of such changes becomes large relative
+	 * to the size of the index, it is no longer updated and must be reconstructed.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class ParentIndex {
+		private final AbstractSyntacticHeap heap;
+		/**
+		 * The number of items covered by this index.
+		 */
+		private int size;
+		private final int[] offsets;
+		private final int[] edges;
+		/**
+		 * Parents added since construction for each child. The first element of each
+		 * array holds the number of parents it contains.
+		 */
+		private int[][] added;
+		/**
+		 * The number of edges added or removed since construction.
+		 */
+		private int changes;
+
+		public ParentIndex(AbstractSyntacticHeap heap) {
+			ArrayList<SyntacticItem> items = heap.syntacticItems;
+			this.heap = heap;
+			this.size = items.size();
+			this.offsets = new int[size + 1];
+			// Count parents of each child
+			for (int i = 0; i != size; ++i) {
+				SyntacticItem item = items.get(i);
+				for (int j = 0; j != item.size(); ++j) {
+					SyntacticItem child = item.get(j);
+					int c = heap.lookup(child);
+					if (c >= 0) {
+						offsets[c + 1]++;
+					}
+				}
+			}
+			for (int i = 0; i != size; ++i) {
+				offsets[i + 1] += offsets[i];
+			}
+			// Fill in parents of each child, which are thus in ascending order
+			this.edges = new int[offsets[size]];
+			int[] next = Arrays.copyOf(offsets, size);
+			for (int i = 0; i != size; ++i) {
+				SyntacticItem item = items.get(i);
+				for (int j = 0; j != item.size(); ++j) {
+					SyntacticItem child = item.get(j);
+					int c = heap.lookup(child);
+					if (c >= 0) {
+						edges[next[c]++] = i;
+					}
+				}
+			}
+			this.added = new int[size][];
+		}
+
+		/**
+		 * Get the parents of the child at a given index, in ascending order.
+		 *
+		 * @param child
+		 * @return
+		 */
+		public int[] get(int child) {
+			int start = 0, end = 0;
+			if (child + 1 < offsets.length) {
+				start = offsets[child];
+				end = offsets[child + 1];
+			}
+			int[] extra = (child < added.length) ? added[child] : null;
+			int n = (extra == null) ? 0 : extra[0];
+			int[] r = new int[end - start + n];
+			int k = 0;
+			for (int i = start; i != end; ++i) {
+				if (edges[i] >= 0) {
+					r[k++] = edges[i];
+				}
+			}
+			for (int i = 1; i <= n; ++i) {
+				r[k++] = extra[i];
+			}
+			r = (k == r.length) ? r : Arrays.copyOf(r, k);
+			if (n > 0) {
+				Arrays.sort(r);
+			}
+			return r;
+		}
+
+		/**
+		 * Record that the item at a given index now refers to a given child.
+		 *
+		 * @param child
+		 * @param parent
+		 * @return <code>false</code> if the index can no longer be updated.
+		 */
+		public boolean add(SyntacticItem child, int parent) {
+			int c = heap.lookup(child);
+			if (c < 0) {
+				return true;
+			} else if (c >= size || ++changes > (edges.length / 2) + 64) {
+				return false;
+			} else if (c >= added.length) {
+				added = Arrays.copyOf(added, Math.max(size, added.length * 2));
+			}
+			int[] extra = added[c];
+			if (extra == null) {
+				extra = new int[4];
+			} else if (extra[0] + 1 == extra.length) {
+				extra = Arrays.copyOf(extra, extra.length * 2);
+			}
+			extra[++extra[0]] = parent;
+			added[c] = extra;
+			return true;
+		}
+
+		/**
+		 * Record that the item at a given index no longer refers to a given child.
+		 *
+		 * @param child
+		 * @param parent
+		 * @return <code>false</code> if the index can no longer be updated.
+		 */
+		public boolean remove(SyntacticItem child, int parent) {
+			int c = heap.lookup(child);
+			if (c < 0) {
+				return true;
+			} else if (c >= size || ++changes > (edges.length / 2) + 64) {
+				return false;
+			}
+			if (c + 1 < offsets.length) {
+				for (int i = offsets[c]; i != offsets[c + 1]; ++i) {
+					if (edges[i] == parent) {
+						edges[i] = -1;
+						return true;
+					}
+				}
+			}
+			int[] extra = (c < added.length) ? added[c] : null;
+			if (extra != null) {
+				for (int i = 1; i <= extra[0]; ++i) {
+					if (extra[i] == parent) {
+						extra[i] = extra[extra[0]--];
+						return true;
+					}
+				}
+			}
+			// Edge not found, hence index is inconsistent
+			return false;
+		}
+	}
+
+	/**
+	 * <p>
+	 * An index from each opcode, and each class of item, to the set of items in a
+	 * heap which have it. Since an item's opcode can change, items are indexed by
+	 * their opcode and class separately. Then, the items of a given kind are those
+	 * whose class is assignable to that kind. The classes assignable to each kind
+	 * are determined on demand from those encountered so far.
+	 * </p>
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class KindIndex {
+		/**
+		 * The number of items covered by this index.
+		 */
+		private int size;
+		private BitSet[] opcodes = new BitSet[0];
+		private final HashMap<Class<?>, BitSet> classes = new HashMap<>();
+		/**
+		 * Caches those classes encountered so far which are assignable to a given
+		 * kind. This is cleared whenever a new class is encountered.
+		 */
+		private final HashMap<Class<?>, Class<?>[]> assignable = new HashMap<>();
+
+		public KindIndex(List<SyntacticItem> items) {
+			this.size = items.size();
+			for (int i = 0; i != size; ++i) {
+				add(i, items.get(i));
+			}
+		}
+
+		/**
+		 * Get the items with a given opcode. The returned set must not be modified.
+		 *
+		 * @param opcode
+		 * @return
+		 */
+		public BitSet get(int opcode) {
+			BitSet r = (opcode >= 0 && opcode < opcodes.length) ? opcodes[opcode] : null;
+			return r == null ? new BitSet() : r;
+		}
+
+		/**
+		 * Get the items of a given kind. The returned set must not be modified.
+		 *
+		 * @param kind
+		 * @return
+		 */
+		public BitSet get(Class<?> kind) {
+			Class<?>[] matches = assignable.get(kind);
+			if (matches == null) {
+				ArrayList<Class<?>> tmp = new ArrayList<>();
+				for (Class<?> c : classes.keySet()) {
+					if (kind.isAssignableFrom(c)) {
+						tmp.add(c);
+					}
+				}
+				matches = tmp.toArray(new Class<?>[tmp.size()]);
+				assignable.put(kind, matches);
+			}
+			if (matches.length == 1) {
+				return classes.get(matches[0]);
 			} else {
-				// Determine index for allocation
-				int index = heap.size();
-				// Clone item prior to allocation
-				SyntacticItem nItem = item.clone(new SyntacticItem[item.size()]);
-				// Allocate item
-				heap.syntacticItems.add(nItem);
-				// ... and allocate item itself
-				nItem.allocate(heap, index);
-				map.put(item, nItem);
-				// Item not allocated to this heap. Therefore, recursively allocate
-				// all children.
-				for (int i = 0; i != nItem.size(); ++i) {
-					SyntacticItem child = item.get(i);
-					if (child != null) {
-						child = allocate(child);
+				BitSet r = new BitSet();
+				for (Class<?> c : matches) {
+					r.or(classes.get(c));
+				}
+				return r;
+			}
+		}
+
+		/**
+		 * Record the item at a given index.
+		 *
+		 * @param index
+		 * @param item
+		 */
+		public void add(int index, SyntacticItem item) {
+			int opcode = item.getOpcode();
+			if (opcode >= opcodes.length) {
+				opcodes = Arrays.copyOf(opcodes, Math.max(opcode + 1, opcodes.length * 2));
+			}
+			if (opcodes[opcode] == null) {
+				opcodes[opcode] = new BitSet();
+			}
+			opcodes[opcode].set(index);
+			BitSet c = classes.get(item.getClass());
+			if (c == null) {
+				c = new BitSet();
+				classes.put(item.getClass(), c);
+				assignable.clear();
+			}
+			c.set(index);
+		}
+	}
+
+	/**
+	 * Captures the structure of an item for the purposes of interning. That is,
+	 * its class, opcode and data along with the identity of its operands.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Key {
+		private final Class<?> kind;
+		private final int opcode;
+		private final byte[] data;
+		private final SyntacticItem[] operands;
+
+		public Key(SyntacticItem item, SyntacticItem[] operands) {
+			this(item.getClass(), item.getOpcode(), item.getData(), operands);
+		}
+
+		public Key(Class<?> kind, int opcode, byte[] data, SyntacticItem[] operands) {
+			this.kind = kind;
+			this.opcode = opcode;
+			this.data = data;
+			this.operands = operands;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				if (kind != k.kind || opcode != k.opcode || operands.length != k.operands.length
+						|| !Arrays.equals(data, k.data)) {
+					return false;
+				}
+				for (int i = 0; i != operands.length; ++i) {
+					if (operands[i] != k.operands[i]) {
+						return false;
 					}
-					nItem.setOperand(i, child);
 				}
-				return nItem;
+				return true;
 			}
+			return false;
 		}
-	};
+
+		@Override
+		public int hashCode() {
+			int hash = kind.hashCode() ^ opcode ^ Arrays.hashCode(data);
+			for (SyntacticItem operand : operands) {
+				hash = (hash * 31) + System.identityHashCode(operand);
+			}
+			return hash;
+		}
+	}
 }
@@ -120,7 +120,12 @@ public abstract class AbstractSyntacticItem extends Node implements Comparable<S
 
 	@Override
 	public void setOpcode(int opcode) {
+		int before = this.opcode;
 		this.opcode = opcode;
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Keep the enclosing heap's index of kinds up-to-date
+			((AbstractSyntacticHeap) parent).updateKinds(this, before);
+		}
 	}
 
 
@@ -140,7 +145,12 @@ public abstract class AbstractSyntacticItem extends Node implements Comparable<S
 
 	@Override
 	public void setOperand(int ith, SyntacticItem child) {
+		SyntacticItem before = operands[ith];
 		operands[ith] = (AbstractSyntacticItem) child;
+		if (parent instanceof AbstractSyntacticHeap) {
+			// Keep the enclosing heap's indices up-to-date
+			((AbstractSyntacticHeap) parent).updateOperand(this, ith, before);
+		}
 	}
 
 	public <T> T[] toArray(Class<T> elementKind) {
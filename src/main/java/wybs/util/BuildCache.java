@@ -0,0 +1,334 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wybs.lang.Build;
+import wybs.lang.SyntacticHeap;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A content-addressed cache of build task outputs stored in a local directory.
+ * Each output is keyed on the kind of task which produced it, the identity and
+ * contents of the task's sources, and a version string (e.g. identifying the
+ * schema of the generated files). When a task is about to be executed whose key
+ * is already in the cache, the target can be restored from the cache without
+ * running the task. This is useful, for example, when switching back and forth
+ * between branches.
+ * </p>
+ * <p>
+ * The total size of the cache is bounded, and the least recently used outputs
+ * are evicted first. The number of hits and misses is recorded, and each is
+ * also reported as a step to the meter of the task in question.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildCache {
+	/**
+	 * Step reported to a meter when a target is restored from the cache.
+	 */
+	public static final String HIT = "cache.hit";
+
+	/**
+	 * Step reported to a meter when a target is not found in the cache.
+	 */
+	public static final String MISS = "cache.miss";
+
+	/**
+	 * The directory in which cached outputs are stored.
+	 */
+	private final DirectoryRoot root;
+
+	/**
+	 * Distinguishes outputs generated by incompatible versions of a tool.
+	 */
+	private final String version;
+
+	/**
+	 * The maximum number of bytes the cache should occupy.
+	 */
+	private final long capacity;
+
+	/**
+	 * Maps the key of each cached output to its size. This is maintained in least
+	 * recently used order.
+	 */
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Total number of bytes currently occupied by the cache.
+	 */
+	private long size;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Construct a build cache for outputs conforming to a given schema.
+	 *
+	 * @param dir
+	 *            The directory in which cached outputs are stored.
+	 * @param schema
+	 *            The schema of the outputs being cached.
+	 * @param capacity
+	 *            The maximum number of bytes the cache should occupy.
+	 * @throws IOException
+	 */
+	public BuildCache(File dir, SyntacticHeap.Schema schema, long capacity) throws IOException {
+		this(dir, schema.getMajorVersion() + "." + schema.getMinorVersion(), capacity);
+	}
+
+	/**
+	 * Construct a build cache for outputs of a given version.
+	 *
+	 * @param dir
+	 *            The directory in which cached outputs are stored.
+	 * @param version
+	 *            Distinguishes outputs generated by incompatible versions of a
+	 *            tool.
+	 * @param capacity
+	 *            The maximum number of bytes the cache should occupy.
+	 * @throws IOException
+	 */
+	public BuildCache(File dir, String version, long capacity) throws IOException {
+		this.root = new DirectoryRoot(dir, new DefaultContentRegistry().register(ContentType, ContentType.getSuffix()));
+		this.version = version;
+		this.capacity = capacity;
+		// Rebuild the index from existing entries, in order of last use.
+		List<Path.Entry<byte[]>> entries = root.get(Content.filter("*", ContentType));
+		entries.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+		for (Path.Entry<byte[]> e : entries) {
+			long length = ((DirectoryRoot.Entry<?>) e).file().length();
+			index.put(e.id().last(), length);
+			size += length;
+		}
+	}
+
+	/**
+	 * Get the number of times a target was restored from this cache.
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of times a target was not found in this cache.
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the total number of bytes currently occupied by this cache.
+	 *
+	 * @return
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Determine the key for a given task. This is a hash of the kind of task, the
+	 * version of this cache, the identity of the target, and the identity and
+	 * contents of each source.
+	 *
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	public String key(Build.Task task) throws IOException {
+		MessageDigest digest = BuildManifest.newDigest();
+		digest.update(task.getClass().getName().getBytes(StandardCharsets.UTF_8));
+		digest.update(version.getBytes(StandardCharsets.UTF_8));
+		digest.update(task.getTarget().id().toString().getBytes(StandardCharsets.UTF_8));
+		for (Path.Entry<?> source : task.getSources()) {
+			digest.update(source.id().toString().getBytes(StandardCharsets.UTF_8));
+			long hash = BuildManifest.hash(source);
+			for (int i = 56; i >= 0; i -= 8) {
+				digest.update((byte) (hash >>> i));
+			}
+		}
+		byte[] bytes = digest.digest();
+		StringBuilder r = new StringBuilder();
+		for (byte b : bytes) {
+			r.append(Character.forDigit((b >> 4) & 0xF, 16));
+			r.append(Character.forDigit(b & 0xF, 16));
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Attempt to restore the target of a given task from this cache. If
+	 * successful, the target contents are written (though not flushed) and
+	 * <code>true</code> is returned.
+	 *
+	 * @param key
+	 *            The key for the task, as determined by <code>key()</code>.
+	 * @param task
+	 * @param meter
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean restore(String key, Build.Task task, Build.Meter meter) throws IOException {
+		byte[] bytes = load(key);
+		if (bytes == null) {
+			misses.incrementAndGet();
+			meter.step(MISS);
+			return false;
+		} else {
+			Path.Entry<Object> target = (Path.Entry<Object>) task.getTarget();
+			target.write(target.contentType().read(target, new ByteArrayInputStream(bytes)));
+			hits.incrementAndGet();
+			meter.step(HIT);
+			return true;
+		}
+	}
+
+	/**
+	 * Store the target of a given task in this cache, evicting the least recently
+	 * used outputs as necessary.
+	 *
+	 * @param key
+	 *            The key for the task, as determined by <code>key()</code>.
+	 * @param task
+	 * @throws IOException
+	 */
+	public void store(String key, Build.Task task) throws IOException {
+		Path.Entry<Object> target = (Path.Entry<Object>) task.getTarget();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		target.contentType().write(bout, target.read());
+		byte[] bytes = bout.toByteArray();
+		if (bytes.length > capacity) {
+			// Too big to be cached
+			return;
+		}
+		synchronized (this) {
+			Path.Entry<byte[]> e = root.create(Trie.fromString(key), ContentType);
+			e.write(bytes);
+			e.flush();
+			// Contents no longer required
+			e.refresh();
+			Long old = index.put(key, (long) bytes.length);
+			size += bytes.length - (old == null ? 0 : old);
+			evict();
+		}
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Load the output for a given key, marking it as recently used. If there is no
+	 * such output, then <code>null</code> is returned.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	private synchronized byte[] load(String key) throws IOException {
+		if (index.get(key) == null) {
+			return null;
+		}
+		Path.Entry<byte[]> e = root.get(Trie.fromString(key), ContentType);
+		File file = (e == null) ? null : ((DirectoryRoot.Entry<?>) e).file();
+		if (file == null || !file.exists()) {
+			// Removed from underneath us
+			size -= index.remove(key);
+			return null;
+		} else {
+			byte[] bytes = e.read();
+			// Contents no longer required
+			e.refresh();
+			// Record use so order is preserved across runs
+			file.setLastModified(System.currentTimeMillis());
+			return bytes;
+		}
+	}
+
+	/**
+	 * Evict least recently used entries until the cache is within capacity.
+	 *
+	 * @throws IOException
+	 */
+	private void evict() throws IOException {
+		Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+		ArrayList<String> evicted = new ArrayList<>();
+		while (size > capacity && iterator.hasNext()) {
+			Map.Entry<String, Long> e = iterator.next();
+			evicted.add(e.getKey());
+			size -= e.getValue();
+			iterator.remove();
+		}
+		for (String key : evicted) {
+			root.remove(Trie.fromString(key), ContentType);
+		}
+	}
+
+	/**
+	 * The content type used for cached outputs, which are simply stored as raw
+	 * bytes.
+	 */
+	private static final Content.Type<byte[]> ContentType = new Content.Type<byte[]>() {
+
+		@Override
+		public String getSuffix() {
+			return "cache";
+		}
+
+		@Override
+		public byte[] read(Path.Entry<byte[]> e, InputStream input) throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = input.read(buffer)) > 0) {
+				bout.write(buffer, 0, n);
+			}
+			input.close();
+			return bout.toByteArray();
+		}
+
+		@Override
+		public void write(OutputStream output, byte[] bytes) throws IOException {
+			output.write(bytes);
+			output.close();
+		}
+	};
+}
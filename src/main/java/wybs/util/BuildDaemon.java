@@ -0,0 +1,360 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import wybs.lang.Build;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.Trie;
+
+/**
+ * <p>
+ * A long-lived process which keeps a build project resident in memory, and
+ * accepts build requests over a local (loopback) socket. Since the project, its
+ * roots and the cached contents of their entries persist between builds,
+ * repeated builds (e.g. from an editor) avoid the costs of starting a fresh
+ * JVM, warming it up and rescanning the file system.
+ * </p>
+ * <p>
+ * Requests are line-based. A client sends zero or more change notifications,
+ * followed by a command, and receives a status line followed by zero or more
+ * lines of detail and, finally, <code>END</code>. Requests are handled one at a
+ * time. The following lines are understood:
+ * </p>
+ * <ul>
+ * <li><code>MODIFIED id suffix</code>. The contents of the given entry have
+ * changed. Only these entries are refreshed by the next build.</li>
+ * <li><code>ADDED id suffix</code> or <code>REMOVED id suffix</code>. The set
+ * of entries has changed, so the next build refreshes the whole project.</li>
+ * <li><code>BUILD</code>. Refresh the project (as necessary) and build it,
+ * responding with <code>OK</code> or <code>FAILED</code> followed by the
+ * targets of any failed tasks.</li>
+ * <li><code>SHUTDOWN</code>. Flush everything and stop the daemon.</li>
+ * </ul>
+ * <p>
+ * Errors are reported with a status line of the form <code>ERROR message</code>.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> although the socket is bound to the loopback interface, it can
+ * be reached by any process on the local machine. Therefore, the first line
+ * sent on each connection must be <code>TOKEN token</code>, where the token is
+ * a random value generated by the daemon (see <code>getToken()</code>).
+ * Connections which do not supply it are rejected. The token should be passed
+ * to clients over a private channel (e.g. a file readable only by the user).
+ * Since connections are served one at a time, any connection which remains
+ * idle for longer than the timeout (see <code>setTimeout()</code>) is dropped.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildDaemon implements Closeable {
+	/**
+	 * Default time (in milliseconds) to wait for the next line of a request.
+	 */
+	private static final int DEFAULT_TIMEOUT = 30000;
+
+	private final SequentialBuildProject project;
+	private final ExecutorService executor;
+	private final Content.Registry registry;
+	private final ServerSocket server;
+
+	/**
+	 * The token which clients must supply before making any request.
+	 */
+	private final String token;
+
+	/**
+	 * The changes reported since the last build.
+	 */
+	private BuildDelta delta = new BuildDelta();
+
+	/**
+	 * Signals whether the next build must refresh the whole project.
+	 */
+	private boolean stale = true;
+
+	/**
+	 * Time (in milliseconds) to wait for the next line of a request before
+	 * dropping the connection.
+	 */
+	private int timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Construct a daemon for a given project, listening on a given port of the
+	 * loopback interface. A port of zero means any free port.
+	 *
+	 * @param project
+	 *            The project to build.
+	 * @param executor
+	 *            The executor used for building.
+	 * @param registry
+	 *            Used to identify the content type of entries from their suffix.
+	 * @param port
+	 * @throws IOException
+	 */
+	public BuildDaemon(SequentialBuildProject project, ExecutorService executor, Content.Registry registry, int port)
+			throws IOException {
+		this.project = project;
+		this.executor = executor;
+		this.registry = registry;
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		this.token = sb.toString();
+	}
+
+	/**
+	 * Get the port on which this daemon is listening.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Get the token which clients must supply before making any request.
+	 *
+	 * @return
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Set the time (in milliseconds) to wait for the next line of a request
+	 * before dropping the connection. This prevents a client which stalls from
+	 * blocking all others.
+	 *
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Start serving requests on a background (daemon) thread.
+	 *
+	 * @return
+	 */
+	public Thread start() {
+		Thread t = new Thread(() -> {
+			try {
+				serve();
+			} catch (IOException e) {
+				// Daemon terminated
+			}
+		}, "build-daemon");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Serve requests until shutdown.
+	 *
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!server.isClosed()) {
+				try (Socket socket = server.accept()) {
+					socket.setSoTimeout(timeout);
+					BufferedReader in = new BufferedReader(
+							new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+							StandardCharsets.UTF_8));
+					String line = in.readLine();
+					if (line == null) {
+						continue;
+					} else if (!isAuthorised(line)) {
+						respond(out, "ERROR not authorised");
+						out.flush();
+						continue;
+					}
+					while ((line = in.readLine()) != null) {
+						if (handle(line, out)) {
+							out.flush();
+						}
+					}
+				} catch (SocketTimeoutException e) {
+					// Client stalled, so drop it.
+				} catch (SocketException e) {
+					// Either connection dropped, or daemon closed.
+				}
+			}
+		} finally {
+			project.flushAll();
+		}
+	}
+
+	/**
+	 * Stop this daemon, causing the current request to be aborted.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+
+	/**
+	 * Handle a single line of a request, returning true if a response was written.
+	 *
+	 * @param line
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean handle(String line, PrintWriter out) throws IOException {
+		String[] items = line.trim().split(" ");
+		try {
+			switch (items[0]) {
+			case "MODIFIED": {
+				Path.Entry<?> e = lookup(items);
+				if (e != null) {
+					delta.modify(e);
+				}
+				return false;
+			}
+			case "ADDED":
+			case "REMOVED":
+				lookup(items);
+				stale = true;
+				return false;
+			case "BUILD":
+				build(out);
+				return true;
+			case "SHUTDOWN":
+				respond(out, "OK");
+				out.flush();
+				close();
+				return true;
+			default:
+				respond(out, "ERROR unknown request \"" + line + "\"");
+				return true;
+			}
+		} catch (Exception e) {
+			// NOTE: message must fit on the status line
+			respond(out, "ERROR " + String.valueOf(e).replace('\n', ' ').replace('\r', ' '));
+			return true;
+		}
+	}
+
+	/**
+	 * Check whether the first line of a connection supplies the correct token.
+	 *
+	 * @param line
+	 * @return
+	 */
+	private boolean isAuthorised(String line) {
+		String[] items = line.trim().split(" ");
+		if (items.length != 2 || !items[0].equals("TOKEN")) {
+			return false;
+		}
+		// NOTE: compare in constant time
+		return MessageDigest.isEqual(items[1].getBytes(StandardCharsets.UTF_8),
+				token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void build(PrintWriter out) throws IOException, InterruptedException, ExecutionException {
+		if (stale) {
+			project.refresh();
+			stale = false;
+		} else {
+			project.refresh(delta);
+		}
+		delta = new BuildDelta();
+		boolean ok = project.build(executor, Build.NULL_METER).get();
+		project.flush();
+		List<String> lines = new ArrayList<>();
+		for (Build.Task task : project.getFailures()) {
+			lines.add(task.getTarget().id().toString());
+		}
+		respond(out, ok ? "OK" : "FAILED", lines.toArray(new String[lines.size()]));
+	}
+
+	private Path.Entry<?> lookup(String[] items) throws IOException {
+		if (items.length != 3) {
+			throw new IllegalArgumentException("expected id and suffix");
+		}
+		Content.Type<?> ct = registry.contentType(items[2]);
+		if (ct == null) {
+			throw new IllegalArgumentException("unknown suffix \"" + items[2] + "\"");
+		}
+		return project.getRoot().get(Trie.fromString(items[1]), ct);
+	}
+
+	private static void respond(PrintWriter out, String status, String... lines) {
+		out.println(status);
+		for (String l : lines) {
+			out.println(l);
+		}
+		out.println("END");
+	}
+
+	/**
+	 * Send a request to a daemon listening on a given port of the loopback
+	 * interface, and return its response (excluding the terminating
+	 * <code>END</code>).
+	 *
+	 * @param port
+	 * @param token
+	 *            The token generated by the daemon.
+	 * @param lines
+	 *            The lines of the request, the last of which should be a command.
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<String> request(int port, String token, String... lines) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out.println("TOKEN " + token);
+			for (String l : lines) {
+				out.println(l);
+			}
+			out.flush();
+			ArrayList<String> response = new ArrayList<>();
+			String line;
+			while ((line = in.readLine()) != null && !line.equals("END")) {
+				response.add(line);
+			}
+			return response;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * A simple, mutable implementation of <code>Build.Delta</code>. Changes are
+ * accumulated as they are reported (e.g. by a file system watcher), such that
+ * later changes to the same entry override earlier ones. For example, an entry
+ * which is added and then modified is still considered added, whilst one which
+ * is added and then removed is dropped altogether.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildDelta implements Build.Delta {
+	private final LinkedHashSet<Path.Entry<?>> added = new LinkedHashSet<>();
+	private final LinkedHashSet<Path.Entry<?>> removed = new LinkedHashSet<>();
+	private final LinkedHashSet<Path.Entry<?>> modified = new LinkedHashSet<>();
+
+	/**
+	 * Record that a given entry has been created.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public BuildDelta add(Path.Entry<?> entry) {
+		if (!removed.remove(entry)) {
+			added.add(entry);
+		} else {
+			// Entry was removed and then recreated
+			modified.add(entry);
+		}
+		return this;
+	}
+
+	/**
+	 * Record that a given entry has been deleted.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public BuildDelta remove(Path.Entry<?> entry) {
+		modified.remove(entry);
+		if (!added.remove(entry)) {
+			removed.add(entry);
+		}
+		return this;
+	}
+
+	/**
+	 * Record that the contents of a given entry have changed.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	public BuildDelta modify(Path.Entry<?> entry) {
+		if (!added.contains(entry)) {
+			modified.add(entry);
+		}
+		return this;
+	}
+
+	@Override
+	public Collection<Path.Entry<?>> getAdded() {
+		return Collections.unmodifiableSet(added);
+	}
+
+	@Override
+	public Collection<Path.Entry<?>> getRemoved() {
+		return Collections.unmodifiableSet(removed);
+	}
+
+	@Override
+	public Collection<Path.Entry<?>> getModified() {
+		return Collections.unmodifiableSet(modified);
+	}
+}
@@ -0,0 +1,96 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides executors suitable for running builds. In particular, this
+ * distinguishes between executors for CPU-bound work (e.g. executing build
+ * tasks), which should be bounded by the number of available processors, and
+ * those for I/O-bound work (e.g. reading source files), which should not.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildExecutors {
+
+	/**
+	 * Construct an executor for CPU-bound work, which uses one thread per
+	 * available processor.
+	 *
+	 * @return
+	 */
+	public static ExecutorService newCpuExecutor() {
+		return newCpuExecutor(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct an executor for CPU-bound work, which uses a given number of
+	 * threads.
+	 *
+	 * @param nThreads
+	 * @return
+	 */
+	public static ExecutorService newCpuExecutor(int nThreads) {
+		return Executors.newFixedThreadPool(nThreads, new DaemonThreadFactory("build-cpu"));
+	}
+
+	/**
+	 * Construct an executor for I/O-bound work which starts a new virtual thread
+	 * for each task. Since virtual threads are cheap, this allows any number of
+	 * blocking operations to proceed at once without sizing a thread pool by hand.
+	 * On platforms which do not support virtual threads, this falls back to an
+	 * unbounded pool of (reusable) platform threads.
+	 *
+	 * @return
+	 */
+	public static ExecutorService newIoExecutor() {
+		try {
+			// NOTE: use reflection since virtual threads are not available on all
+			// supported platforms.
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new DaemonThreadFactory("build-io"));
+		}
+	}
+
+	/**
+	 * Responsible for constructing named daemon threads, such that a build
+	 * executor which is not shutdown does not prevent the JVM from exiting.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
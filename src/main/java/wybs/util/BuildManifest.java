@@ -0,0 +1,749 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import wybs.lang.Build;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Records the state of the sources and target of each build task at the point
+ * it was last successfully executed. This allows a build project to determine
+ * whether or not a task is up-to-date and, hence, can be skipped. The state of
+ * an entry is captured by its last modification time and a hash of its
+ * contents. The modification time is checked first since this is cheap and,
+ * only when it differs, is the content hash compared.
+ * </p>
+ * <p>
+ * During a build, the hash computed for each entry is remembered. In
+ * particular, when a task is executed its target is hashed and, if this is
+ * unchanged from before, then its dependents will find their recorded stamp
+ * matches without needing to hash the target again. Thus, when a rebuilt
+ * target is byte-identical to its previous version, all dependents whose other
+ * sources are unchanged are skipped (i.e. early cutoff).
+ * </p>
+ * <p>
+ * Optionally, dependencies can be tracked at the level of individual
+ * declarations. For a task implementing <code>Build.FineGrainedTask</code>, the
+ * signature of each declaration it used from a source is recorded as well (see
+ * <code>setSignatures()</code>). Then, when the contents of that source change,
+ * the task remains up-to-date provided none of those signatures have changed.
+ * </p>
+ * <p>
+ * A manifest is persisted in the project root using the content type
+ * <code>BuildManifest.ContentType</code>, which must therefore be registered
+ * with the root's content registry.
+ * </p>
+ * <p>
+ * Optionally, a manifest can also write ahead to a journal (see
+ * <code>setJournal()</code>). Each record is appended to the journal as soon
+ * as its task completes, rather than only when the manifest is saved at the
+ * end of a build. Thus, if a build is interrupted, the journal is replayed to
+ * recover the tasks which did complete. Since their stamps are checked as usual,
+ * any task whose target did not survive the interruption is simply executed
+ * again.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> a manifest may be safely accessed by multiple tasks executing
+ * concurrently.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildManifest {
+	/**
+	 * The hash used to represent an entry which does not (yet) exist.
+	 */
+	public static final long ABSENT = 0;
+
+	/**
+	 * Maps the location of each target to the record of how it was last built.
+	 */
+	private final Map<String, Record> records;
+
+	/**
+	 * Maps the location of each entry hashed during the current build to its hash.
+	 */
+	private final Map<String, Long> hashes;
+
+	/**
+	 * Used to determine the signatures of declarations for fine-grained
+	 * dependency tracking, or <code>null</code> if this is disabled.
+	 */
+	private Build.Signatures signatures;
+
+	/**
+	 * The file to which records are appended as tasks complete, or
+	 * <code>null</code> if journalling is disabled.
+	 */
+	private File journalFile;
+
+	/**
+	 * The stream through which records are appended to the journal.
+	 */
+	private DataOutputStream journal;
+
+	public BuildManifest() {
+		this.records = new ConcurrentHashMap<>();
+		this.hashes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Enable fine-grained dependency tracking using a given means of determining
+	 * the signatures of declarations.
+	 *
+	 * @param signatures
+	 *            Determines signatures of declarations, or <code>null</code> to
+	 *            disable fine-grained tracking.
+	 */
+	public void setSignatures(Build.Signatures signatures) {
+		this.signatures = signatures;
+	}
+
+	/**
+	 * Enable write-ahead journalling to a given file. Any records found in the
+	 * journal (e.g. from a build which was interrupted) are first replayed into
+	 * this manifest, superseding those already present. A record which was only
+	 * partially written is discarded, along with anything after it.
+	 *
+	 * @param file
+	 *            The journal file, or <code>null</code> to disable journalling.
+	 * @throws IOException
+	 */
+	public synchronized void setJournal(File file) throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		journalFile = file;
+		if (file != null) {
+			long length = file.exists() ? replay(file) : 0;
+			if (length == 0) {
+				openJournal(false);
+			} else {
+				// Drop any partially written record
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.setLength(length);
+				}
+				openJournal(true);
+			}
+		}
+	}
+
+	/**
+	 * Discard everything written to the journal so far. This should be called once
+	 * this manifest has been saved to permanent storage, since the journal is then
+	 * no longer needed to recover it.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clearJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			openJournal(false);
+		}
+	}
+
+	/**
+	 * Signal the start of a new build. This discards any hashes remembered from
+	 * the previous build, since entries may have changed in the meantime.
+	 */
+	public void reset() {
+		hashes.clear();
+	}
+
+	/**
+	 * Get the number of tasks recorded in this manifest.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * Check whether a given task is up-to-date. That is, whether or not its sources
+	 * and target are unchanged since it was last recorded. The recorded
+	 * modification times are refreshed for any entry whose modification time has
+	 * changed, but whose contents have not.
+	 *
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(Build.Task task) throws IOException {
+		Path.Entry<?> target = task.getTarget();
+		List<Path.Entry<?>> sources = task.getSources();
+		Record record = records.get(target.location());
+		if (record == null || record.sources.length != sources.size()) {
+			return false;
+		}
+		boolean refreshed = false;
+		Stamp[] stamps = new Stamp[sources.size()];
+		for (int i = 0; i != stamps.length; ++i) {
+			Stamp s = record.sources[i];
+			stamps[i] = check(s, sources.get(i));
+			if (stamps[i] == null) {
+				return false;
+			}
+			refreshed |= (stamps[i] != s);
+		}
+		Stamp t = check(record.target, target);
+		if (t == null) {
+			return false;
+		} else if (refreshed || t != record.target) {
+			records.put(t.location, new Record(t, stamps));
+		}
+		return true;
+	}
+
+	/**
+	 * Record the current state of a given task's sources and target. This should
+	 * be called after the task has successfully executed.
+	 *
+	 * @param task
+	 * @throws IOException
+	 */
+	public void record(Build.Task task) throws IOException {
+		List<Path.Entry<?>> sources = task.getSources();
+		Path.Entry<?> target = task.getTarget();
+		Map<Path.Entry<?>, ? extends Collection<Name>> used = null;
+		if (signatures != null && task instanceof Build.FineGrainedTask) {
+			used = ((Build.FineGrainedTask) task).getUsedDeclarations();
+		}
+		Stamp[] stamps = new Stamp[sources.size()];
+		for (int i = 0; i != stamps.length; ++i) {
+			Path.Entry<?> source = sources.get(i);
+			Collection<Name> names = (used != null) ? used.get(source) : null;
+			stamps[i] = new Stamp(source.location(), lastModified(source), hashOf(source));
+			if (names != null) {
+				String[] strs = names(names);
+				stamps[i] = stamps[i].with(strs, signatures(source, strs));
+			}
+		}
+		// NOTE: target has just been written, hence must be hashed again
+		long hash = hash(target);
+		hashes.put(target.location(), hash);
+		Stamp stamp = new Stamp(target.location(), lastModified(target), hash);
+		Record record = new Record(stamp, stamps);
+		records.put(stamp.location, record);
+		if (journal != null) {
+			append(record);
+		}
+	}
+
+	/**
+	 * Forget the record for a given task, meaning it will be considered out of
+	 * date.
+	 *
+	 * @param task
+	 */
+	public void forget(Build.Task task) {
+		records.remove(task.getTarget().location());
+	}
+
+	/**
+	 * Remove any record which does not correspond to one of the given tasks. This
+	 * prevents the manifest from growing indefinitely as tasks come and go.
+	 *
+	 * @param tasks
+	 */
+	public void retainAll(Collection<Build.Task> tasks) {
+		HashSet<String> targets = new HashSet<>();
+		for (Build.Task task : tasks) {
+			targets.add(task.getTarget().location());
+		}
+		records.keySet().retainAll(targets);
+	}
+
+	/**
+	 * Compute a hash of the contents of a given entry. If the entry has been
+	 * modified, then its contents are held in memory and must be serialised to
+	 * compute the hash. Otherwise, the hash is computed directly from permanent
+	 * storage. In the case that the entry does not yet exist in permanent storage,
+	 * <code>ABSENT</code> is returned.
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	public static long hash(Path.Entry<?> entry) throws IOException {
+		MessageDigest digest = newDigest();
+		if (entry.isModified()) {
+			Path.Entry<Object> e = (Path.Entry<Object>) entry;
+			DigestOutputStream output = new DigestOutputStream(NULL_OUTPUT, digest);
+			e.contentType().write(output, e.read());
+		} else {
+			try (InputStream input = entry.inputStream()) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = input.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
+				}
+			} catch (FileNotFoundException e) {
+				return ABSENT;
+			}
+		}
+		return toLong(digest.digest());
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Open the journal for writing. If not appending, the journal is truncated and
+	 * begins with a fresh header.
+	 *
+	 * @param append
+	 * @throws IOException
+	 */
+	private void openJournal(boolean append) throws IOException {
+		journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, append)));
+		if (!append) {
+			journal.write(JOURNAL_MAGIC);
+			journal.writeInt(VERSION);
+			journal.flush();
+		}
+	}
+
+	/**
+	 * Append a record to the journal. Each record is framed by its length and
+	 * checksum so that, if the build is interrupted part way through writing it,
+	 * this is detected when replaying.
+	 *
+	 * @param record
+	 * @throws IOException
+	 */
+	private synchronized void append(Record record) throws IOException {
+		if (journal != null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			BinaryOutputStream out = new BinaryOutputStream(bytes);
+			writeRecord(record, out);
+			out.close();
+			byte[] frame = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(frame);
+			journal.writeInt(frame.length);
+			journal.writeInt((int) crc.getValue());
+			journal.write(frame);
+			journal.flush();
+		}
+	}
+
+	/**
+	 * Replay the records found in a given journal into this manifest.
+	 *
+	 * @param file
+	 * @return The length of the journal up to the end of the last complete record,
+	 *         or zero if the journal is unusable.
+	 * @throws IOException
+	 */
+	private long replay(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] magic = new byte[JOURNAL_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, JOURNAL_MAGIC) || in.readInt() != VERSION) {
+				return 0;
+			}
+			long length = magic.length + 4;
+			while (true) {
+				byte[] frame;
+				int checksum;
+				try {
+					int n = in.readInt();
+					checksum = in.readInt();
+					if (n < 0 || n > file.length()) {
+						break;
+					}
+					frame = new byte[n];
+					in.readFully(frame);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(frame);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+				Record r = readRecord(new BinaryInputStream(new ByteArrayInputStream(frame)));
+				records.put(r.target.location, r);
+				length += frame.length + 8;
+			}
+			return length;
+		} catch (EOFException e) {
+			// Header incomplete
+			return 0;
+		}
+	}
+
+	/**
+	 * Check whether a given entry matches a given stamp. If so, either the stamp is
+	 * returned or, if only the modification time has changed, a refreshed stamp.
+	 * Otherwise, <code>null</code> is returned.
+	 *
+	 * @param stamp
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private Stamp check(Stamp stamp, Path.Entry<?> entry) throws IOException {
+		if (!stamp.location.equals(entry.location())) {
+			return null;
+		} else if (!entry.isModified() && entry.lastModified() == stamp.lastModified) {
+			return stamp;
+		}
+		long h = hashOf(entry);
+		if (h == stamp.hash) {
+			return new Stamp(stamp.location, lastModified(entry), h).with(stamp.names, stamp.signatures);
+		} else if (stamp.names != null && signatures != null
+				&& Arrays.equals(stamp.signatures, signatures(entry, stamp.names))) {
+			// Contents changed, but not the signatures of any declarations used.
+			return new Stamp(stamp.location, lastModified(entry), h).with(stamp.names, stamp.signatures);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Compute the signatures of a given set of declarations within a given entry.
+	 *
+	 * @param entry
+	 * @param names
+	 * @return
+	 * @throws IOException
+	 */
+	private long[] signatures(Path.Entry<?> entry, String[] names) throws IOException {
+		long[] sigs = new long[names.length];
+		for (int i = 0; i != names.length; ++i) {
+			String[] components = names[i].split("::");
+			Identifier[] ids = new Identifier[components.length];
+			for (int j = 0; j != ids.length; ++j) {
+				ids[j] = new Identifier(components[j]);
+			}
+			sigs[i] = signatures.getSignature(entry, new Name(ids));
+		}
+		return sigs;
+	}
+
+	/**
+	 * Convert a collection of names into a sorted array of distinct strings.
+	 *
+	 * @param names
+	 * @return
+	 */
+	private static String[] names(Collection<Name> names) {
+		TreeSet<String> strs = new TreeSet<>();
+		for (Name n : names) {
+			strs.add(n.toString());
+		}
+		return strs.toArray(new String[strs.size()]);
+	}
+
+	/**
+	 * Get the hash of a given entry, reusing that computed earlier in the current
+	 * build (if applicable).
+	 *
+	 * @param entry
+	 * @return
+	 * @throws IOException
+	 */
+	private long hashOf(Path.Entry<?> entry) throws IOException {
+		Long h = hashes.get(entry.location());
+		if (h == null) {
+			h = hash(entry);
+			hashes.put(entry.location(), h);
+		}
+		return h;
+	}
+
+	/**
+	 * Determine the modification time to record for a given entry. An entry which
+	 * has been modified, but not flushed, is held only in memory and its
+	 * modification time refers to the (stale) contents in permanent storage.
+	 * Hence, such an entry is given a modification time which never matches,
+	 * forcing it to be hashed when next checked.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private static long lastModified(Path.Entry<?> entry) {
+		return entry.isModified() ? UNFLUSHED : entry.lastModified();
+	}
+
+	/**
+	 * Modification time recorded for entries which are held only in memory.
+	 */
+	private static final long UNFLUSHED = -1;
+
+	/**
+	 * Construct a fresh message digest for hashing entry contents.
+	 *
+	 * @return
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// NOTE: every Java platform is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long toLong(byte[] bytes) {
+		long r = 0;
+		for (int i = 0; i != 8; ++i) {
+			r = (r << 8) | (bytes[i] & 0xFF);
+		}
+		// Ensure an existing entry never hashes to ABSENT
+		return r == ABSENT ? 1 : r;
+	}
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+		}
+	};
+
+	/**
+	 * Records the state of a given entry.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Stamp {
+		private final String location;
+		private final long lastModified;
+		private final long hash;
+		/**
+		 * The declarations used from this entry, or <code>null</code> if it was used
+		 * in its entirety.
+		 */
+		private final String[] names;
+		/**
+		 * The signature of each declaration used from this entry.
+		 */
+		private final long[] signatures;
+
+		public Stamp(String location, long lastModified, long hash) {
+			this(location, lastModified, hash, null, null);
+		}
+
+		public Stamp(String location, long lastModified, long hash, String[] names, long[] signatures) {
+			this.location = location;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.names = names;
+			this.signatures = signatures;
+		}
+
+		public Stamp with(String[] names, long[] signatures) {
+			return new Stamp(location, lastModified, hash, names, signatures);
+		}
+	}
+
+	/**
+	 * Records the state of a given task.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Record {
+		private final Stamp target;
+		private final Stamp[] sources;
+
+		public Record(Stamp target, Stamp[] sources) {
+			this.target = target;
+			this.sources = sources;
+		}
+	}
+
+	// ======================================================================
+	// Content Type
+	// ======================================================================
+
+	/**
+	 * Magic number identifying a build manifest.
+	 */
+	private static final byte[] MAGIC = { 'W', 'Y', 'B', 'M' };
+
+	/**
+	 * Magic number identifying a build journal.
+	 */
+	private static final byte[] JOURNAL_MAGIC = { 'W', 'Y', 'B', 'J' };
+
+	/**
+	 * Version of the binary format.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Responsible for reading and writing build manifests in a compact binary
+	 * format. Every string is written as a length followed by its UTF8 bytes,
+	 * whilst numbers are written in a variable amount of space where possible.
+	 */
+	public static final Content.Type<BuildManifest> ContentType = new Content.Type<BuildManifest>() {
+
+		@Override
+		public String getSuffix() {
+			return "manifest";
+		}
+
+		@Override
+		public BuildManifest read(Path.Entry<BuildManifest> e, InputStream input) throws IOException {
+			BinaryInputStream in = new BinaryInputStream(input);
+			BuildManifest manifest = new BuildManifest();
+			for (int i = 0; i != MAGIC.length; ++i) {
+				if (in.read_u8() != MAGIC[i]) {
+					throw new IOException("invalid build manifest (" + e.location() + ")");
+				}
+			}
+			if (in.read_uv() != VERSION) {
+				// Out-of-date manifest, so treat everything as out-of-date
+				return manifest;
+			}
+			int n = in.read_uv();
+			for (int i = 0; i != n; ++i) {
+				Record r = readRecord(in);
+				manifest.records.put(r.target.location, r);
+			}
+			in.close();
+			return manifest;
+		}
+
+		@Override
+		public void write(OutputStream output, BuildManifest manifest) throws IOException {
+			BinaryOutputStream out = new BinaryOutputStream(output);
+			out.write(MAGIC);
+			out.write_uv(VERSION);
+			// NOTE: take a snapshot to protect against concurrent modification
+			Record[] records = manifest.records.values().toArray(new Record[0]);
+			out.write_uv(records.length);
+			for (Record r : records) {
+				writeRecord(r, out);
+			}
+			out.close();
+		}
+	};
+
+	private static Record readRecord(BinaryInputStream in) throws IOException {
+		Stamp target = readStamp(in);
+		Stamp[] sources = new Stamp[in.read_uv()];
+		for (int j = 0; j != sources.length; ++j) {
+			sources[j] = readStamp(in);
+		}
+		return new Record(target, sources);
+	}
+
+	private static void writeRecord(Record r, BinaryOutputStream out) throws IOException {
+		writeStamp(r.target, out);
+		out.write_uv(r.sources.length);
+		for (Stamp s : r.sources) {
+			writeStamp(s, out);
+		}
+	}
+
+	private static Stamp readStamp(BinaryInputStream in) throws IOException {
+		byte[] bytes = new byte[in.read_uv()];
+		in.read(bytes);
+		String location = new String(bytes, StandardCharsets.UTF_8);
+		long lastModified = readLong(in);
+		long hash = readLong(in);
+		int n = in.read_uv();
+		if (n == 0) {
+			return new Stamp(location, lastModified, hash);
+		}
+		// NOTE: count is offset by one to distinguish no names from none used
+		String[] names = new String[n - 1];
+		long[] signatures = new long[n - 1];
+		for (int i = 0; i != names.length; ++i) {
+			bytes = new byte[in.read_uv()];
+			in.read(bytes);
+			names[i] = new String(bytes, StandardCharsets.UTF_8);
+			signatures[i] = readLong(in);
+		}
+		return new Stamp(location, lastModified, hash, names, signatures);
+	}
+
+	private static void writeStamp(Stamp stamp, BinaryOutputStream out) throws IOException {
+		byte[] bytes = stamp.location.getBytes(StandardCharsets.UTF_8);
+		out.write_uv(bytes.length);
+		out.write(bytes);
+		writeLong(stamp.lastModified, out);
+		writeLong(stamp.hash, out);
+		if (stamp.names == null) {
+			out.write_uv(0);
+		} else {
+			out.write_uv(stamp.names.length + 1);
+			for (int i = 0; i != stamp.names.length; ++i) {
+				bytes = stamp.names[i].getBytes(StandardCharsets.UTF_8);
+				out.write_uv(bytes.length);
+				out.write(bytes);
+				writeLong(stamp.signatures[i], out);
+			}
+		}
+	}
+
+	private static long readLong(BinaryInputStream in) throws IOException {
+		long r = 0;
+		for (int i = 0; i != 8; ++i) {
+			r = (r << 8) | in.read_u8();
+		}
+		return r;
+	}
+
+	private static void writeLong(long l, BinaryOutputStream out) throws IOException {
+		for (int i = 56; i >= 0; i -= 8) {
+			out.write_u8((int) (l >>> i));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import wybs.lang.Build;
+
+/**
+ * Determines the order in which tasks that are ready (i.e. whose dependencies
+ * have all completed) are executed by a <code>ParallelBuildProject</code>.
+ * Whenever a thread becomes available, the scheduler is asked for the next task
+ * to run. Thus, when there are more ready tasks than threads, the scheduler can
+ * make a significant difference to the overall time taken.
+ *
+ * @author David J. Pearce
+ *
+ */
+public interface BuildScheduler {
+
+	/**
+	 * Prepare for a build of a given task graph, producing a queue into which
+	 * ready tasks will be placed.
+	 *
+	 * @param graph
+	 * @return
+	 */
+	public Queue initialise(TaskGraph graph);
+
+	/**
+	 * Record the time taken to execute a given task.
+	 *
+	 * @param task
+	 * @param nanos
+	 *            Duration in nanoseconds.
+	 */
+	public void record(Build.Task task, long nanos);
+
+	/**
+	 * Signal that the current build has finished.
+	 *
+	 * @throws IOException
+	 */
+	public void finish() throws IOException;
+
+	/**
+	 * A queue of ready tasks, identified by their index in the task graph. Note
+	 * that a queue is only ever accessed by one thread at a time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Queue {
+		/**
+		 * Add a task which is now ready.
+		 *
+		 * @param index
+		 */
+		public void add(int index);
+
+		/**
+		 * Remove the task which should be executed next.
+		 *
+		 * @return
+		 */
+		public int next();
+	}
+
+	/**
+	 * The simplest scheduler which executes ready tasks in the order in which they
+	 * became ready.
+	 */
+	public static final BuildScheduler FIFO = new BuildScheduler() {
+
+		@Override
+		public Queue initialise(TaskGraph graph) {
+			return new Queue() {
+				private final ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+				@Override
+				public void add(int index) {
+					queue.add(index);
+				}
+
+				@Override
+				public int next() {
+					return queue.remove();
+				}
+			};
+		}
+
+		@Override
+		public void record(Build.Task task, long nanos) {
+
+		}
+
+		@Override
+		public void finish() {
+
+		}
+	};
+}
@@ -0,0 +1,200 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * Executes build tasks on behalf of a <code>WorkerPool</code>, typically in a
+ * separate (local) JVM. This allows very large builds to be spread across
+ * several processes, thereby avoiding the heap and garbage collection limits of
+ * a single JVM. A worker stays alive (and, hence, warm) until its connection is
+ * closed, such that it can be reused across many builds.
+ * </p>
+ * <p>
+ * Each request identifies the kind of task to execute along with the contents
+ * of its sources, and each response gives the contents of its target. Contents
+ * are exchanged in their binary form, as given by their content type (e.g. the
+ * serialised bytes of a <code>SyntacticHeap</code>). The protocol is as
+ * follows:
+ * </p>
+ *
+ * <pre>
+ * handshake: MAGIC:i32 VERSION:i32 token:utf                (worker to pool)
+ * request:   kind:utf n:i32 (len:i32 bytes)*               (pool to worker)
+ * response:  OK:u8 len:i32 bytes | FAILED:u8 | ERROR:u8 message:utf
+ * </pre>
+ * <p>
+ * The token is generated by the pool and given to each worker it launches via
+ * the <code>TOKEN_VARIABLE</code> environment variable.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class BuildWorker {
+	public static final int MAGIC = 0x57594257; // "WYBW"
+	public static final int VERSION = 2;
+
+	/**
+	 * The environment variable through which a worker process receives the token
+	 * of its pool.
+	 */
+	public static final String TOKEN_VARIABLE = "WYBS_WORKER_TOKEN";
+
+	/**
+	 * Response status indicating the task succeeded and the target contents
+	 * follow.
+	 */
+	public static final int OK = 0;
+	/**
+	 * Response status indicating the task failed (e.g. because of errors in its
+	 * sources).
+	 */
+	public static final int FAILED = 1;
+	/**
+	 * Response status indicating the task could not be executed at all (e.g.
+	 * because its kind is unknown), with a message following.
+	 */
+	public static final int ERROR = 2;
+
+	/**
+	 * Responsible for executing a given kind of task.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Handler {
+		/**
+		 * Execute a task with given source contents, producing the contents of its
+		 * target, or <code>null</code> if the task failed.
+		 *
+		 * @param sources
+		 * @return
+		 * @throws Exception
+		 */
+		public byte[] apply(List<byte[]> sources) throws Exception;
+	}
+
+	/**
+	 * The handlers for each kind of task supported by this worker.
+	 */
+	private final Map<String, Handler> handlers;
+
+	public BuildWorker(Map<String, Handler> handlers) {
+		this.handlers = handlers;
+	}
+
+	/**
+	 * Serve requests received over a given connection until it is closed.
+	 *
+	 * @param socket
+	 * @param token
+	 *            The token of the pool at the other end of the connection.
+	 * @throws IOException
+	 */
+	public void serve(Socket socket, String token) throws IOException {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(token);
+			out.flush();
+			for (;;) {
+				String kind;
+				try {
+					kind = in.readUTF();
+				} catch (EOFException e) {
+					// Connection closed by pool
+					return;
+				}
+				int n = in.readInt();
+				List<byte[]> sources = new ArrayList<>(n);
+				for (int i = 0; i != n; ++i) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					sources.add(bytes);
+				}
+				execute(kind, sources, out);
+				out.flush();
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private void execute(String kind, List<byte[]> sources, DataOutputStream out) throws IOException {
+		Handler handler = handlers.get(kind);
+		if (handler == null) {
+			out.writeByte(ERROR);
+			out.writeUTF("unknown task kind \"" + kind + "\"");
+			return;
+		}
+		byte[] target;
+		try {
+			target = handler.apply(sources);
+		} catch (Throwable t) {
+			out.writeByte(ERROR);
+			out.writeUTF(String.valueOf(t));
+			return;
+		}
+		if (target == null) {
+			out.writeByte(FAILED);
+		} else {
+			out.writeByte(OK);
+			out.writeInt(target.length);
+			out.write(target);
+		}
+	}
+
+	/**
+	 * Entry point for a worker process. This expects the port on which the pool
+	 * is listening (on the loopback interface), and the name of a class which
+	 * supplies the handlers for this worker. The pool's token is obtained from
+	 * the environment.
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.err.println("usage: BuildWorker <port> <handlers>");
+			System.exit(1);
+		}
+		String token = System.getenv(TOKEN_VARIABLE);
+		if (token == null) {
+			System.err.println("BuildWorker: " + TOKEN_VARIABLE + " not set");
+			System.exit(1);
+		}
+		int port = Integer.parseInt(args[0]);
+		Supplier<Map<String, Handler>> supplier = (Supplier<Map<String, Handler>>) Class.forName(args[1])
+				.getDeclaredConstructor().newInstance();
+		BuildWorker worker = new BuildWorker(supplier.get());
+		worker.serve(new Socket(InetAddress.getLoopbackAddress(), port), token);
+	}
+}
@@ -0,0 +1,68 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import wybs.lang.Build;
+
+/**
+ * A meter which wraps another meter and allows a build to be cancelled. All
+ * meters forked from a cancellable meter share the same cancellation flag, such
+ * that cancelling the root is visible to every (sub)task. A meter is also
+ * considered cancelled if the meter it wraps is.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CancellableMeter implements Build.Meter {
+	private final Build.Meter meter;
+	private final AtomicBoolean cancelled;
+
+	public CancellableMeter(Build.Meter meter) {
+		this(meter, new AtomicBoolean());
+	}
+
+	private CancellableMeter(Build.Meter meter, AtomicBoolean cancelled) {
+		this.meter = meter;
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Cancel the build of which this meter is part.
+	 */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled.get() || meter.isCancelled();
+	}
+
+	@Override
+	public Build.Meter fork(String name) {
+		return new CancellableMeter(meter.fork(name), cancelled);
+	}
+
+	@Override
+	public void step(String tag) {
+		meter.step(tag);
+	}
+
+	@Override
+	public void done() {
+		meter.done();
+	}
+}
@@ -0,0 +1,174 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import wybs.lang.Build;
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * A build scheduler which prioritises ready tasks on the critical path. That
+ * is, tasks with the longest (estimated) chain of work remaining below them are
+ * executed first. This helps prevent long chains of dependent tasks being
+ * started late, thereby extending the overall time taken.
+ * </p>
+ * <p>
+ * The duration of each task is estimated from the time it took in previous
+ * builds. These durations are persisted in a given root using the content type
+ * <code>CriticalPathScheduler.ContentType</code>, which must therefore be
+ * registered with the root's content registry. Tasks with no recorded duration
+ * are assumed to take the average of those which have.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CriticalPathScheduler implements BuildScheduler {
+	/**
+	 * The root in which durations are persisted.
+	 */
+	private final Path.Root root;
+
+	/**
+	 * Identifies where durations are persisted within the root.
+	 */
+	private final Path.ID id;
+
+	/**
+	 * Maps the location of each task's target to its estimated duration (in
+	 * microseconds).
+	 */
+	private final Map<String, Integer> durations;
+
+	public CriticalPathScheduler(Path.Root root, Path.ID id) throws IOException {
+		this.root = root;
+		this.id = id;
+		this.durations = new ConcurrentHashMap<>();
+		Path.Entry<Map<String, Integer>> e = root.get(id, ContentType);
+		if (e != null) {
+			durations.putAll(e.read());
+		}
+	}
+
+	/**
+	 * Get the estimated duration (in microseconds) for a given task, or
+	 * <code>null</code> if there is no estimate.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public Integer getDuration(Build.Task task) {
+		return durations.get(task.getTarget().location());
+	}
+
+	@Override
+	public Queue initialise(TaskGraph graph) {
+		final int n = graph.size();
+		// Estimate default duration
+		long total = 0;
+		for (int d : durations.values()) {
+			total += d;
+		}
+		long average = durations.isEmpty() ? 1 : Math.max(1, total / durations.size());
+		// Determine longest path from each task. Since tasks are in topological
+		// order, those below a task are always visited before it.
+		long[] rank = new long[n];
+		for (int i = n - 1; i >= 0; --i) {
+			Integer d = getDuration(graph.getTask(i));
+			long longest = 0;
+			for (int j : graph.getSuccessors(i)) {
+				longest = Math.max(longest, rank[j]);
+			}
+			rank[i] = (d == null ? average : d) + longest;
+		}
+		PriorityQueue<Integer> queue = new PriorityQueue<>(
+				(a, b) -> rank[a] != rank[b] ? Long.compare(rank[b], rank[a]) : Integer.compare(a, b));
+		return new Queue() {
+			@Override
+			public void add(int index) {
+				queue.add(index);
+			}
+
+			@Override
+			public int next() {
+				return queue.remove();
+			}
+		};
+	}
+
+	@Override
+	public void record(Build.Task task, long nanos) {
+		int sample = (int) Math.min(Integer.MAX_VALUE, Math.max(1, nanos / 1000));
+		// Smooth estimate to reduce impact of outliers
+		durations.merge(task.getTarget().location(), sample, (o, n) -> (int) (((long) o + n) / 2));
+	}
+
+	@Override
+	public void finish() throws IOException {
+		root.create(id, ContentType).write(durations);
+	}
+
+	/**
+	 * Responsible for reading and writing task durations in a compact binary
+	 * format.
+	 */
+	public static final Content.Type<Map<String, Integer>> ContentType = new Content.Type<Map<String, Integer>>() {
+
+		@Override
+		public String getSuffix() {
+			return "durations";
+		}
+
+		@Override
+		public Map<String, Integer> read(Path.Entry<Map<String, Integer>> e, InputStream input) throws IOException {
+			BinaryInputStream in = new BinaryInputStream(input);
+			Map<String, Integer> durations = new ConcurrentHashMap<>();
+			int n = in.read_uv();
+			for (int i = 0; i != n; ++i) {
+				byte[] bytes = new byte[in.read_uv()];
+				in.read(bytes);
+				durations.put(new String(bytes, StandardCharsets.UTF_8), in.read_uv());
+			}
+			in.close();
+			return durations;
+		}
+
+		@Override
+		public void write(OutputStream output, Map<String, Integer> durations) throws IOException {
+			BinaryOutputStream out = new BinaryOutputStream(output);
+			// NOTE: take a snapshot to protect against concurrent modification
+			Object[] entries = durations.entrySet().toArray();
+			out.write_uv(entries.length);
+			for (Object o : entries) {
+				Map.Entry<String, Integer> entry = (Map.Entry<String, Integer>) o;
+				byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+				out.write_uv(bytes.length);
+				out.write(bytes);
+				out.write_uv(entry.getValue());
+			}
+			out.close();
+		}
+	};
+}
@@ -0,0 +1,61 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.List;
+
+import wyfs.lang.Path;
+
+/**
+ * Signals that the tasks of a build project form a cycle and, hence, cannot be
+ * ordered. The chain of entries involved is recorded such that each entry is
+ * used (directly) to build the next, and the first and last entries are the
+ * same.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CyclicDependencyError extends RuntimeException {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private final List<Path.Entry<?>> chain;
+
+	public CyclicDependencyError(List<Path.Entry<?>> chain) {
+		super(toString(chain));
+		this.chain = chain;
+	}
+
+	/**
+	 * Get the chain of entries which make up the cycle.
+	 *
+	 * @return
+	 */
+	public List<Path.Entry<?>> getChain() {
+		return chain;
+	}
+
+	private static String toString(List<Path.Entry<?>> chain) {
+		String r = "cyclic dependency between build tasks: ";
+		for (int i = 0; i != chain.size(); ++i) {
+			if (i != 0) {
+				r += " => ";
+			}
+			r += chain.get(i).id();
+		}
+		return r;
+	}
+}
@@ -0,0 +1,555 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Provides an implementation of Build.Project which executes independent tasks
+ * concurrently. The dependency graph between tasks is derived from their
+ * sources and targets (see <code>TaskGraph</code>): a task depends upon another
+ * if one of its sources is the target of that task. A task is submitted to the
+ * executor as soon as all of the tasks it depends upon have completed. Thus,
+ * the amount of parallelism is limited only by the shape of the dependency
+ * graph and the executor itself.
+ * </p>
+ * <p>
+ * Optionally, the sources of each task can be read on a separate executor
+ * before the task itself is submitted (see <code>setPrefetchExecutor()</code>).
+ * This allows I/O-bound work to proceed on an unbounded number of (e.g.
+ * virtual) threads, whilst the CPU-bound work of the tasks themselves is
+ * limited by the executor given to <code>build()</code>.
+ * </p>
+ * <p>
+ * When there are more ready tasks than available threads, the order in which
+ * they are executed is determined by a <code>BuildScheduler</code>. By default,
+ * tasks are executed in the order they became ready.
+ * </p>
+ * <p>
+ * Optionally, the total weight of tasks executing at once can be limited by a
+ * budget (see <code>setBudget()</code>). In which case, a ready task is only
+ * started when its weight (see <code>Build.Task.getWeight()</code>) fits within
+ * the budget remaining. This prevents, for example, too many tasks with very
+ * large sources from executing at once and exhausting available memory.
+ * </p>
+ * <p>
+ * Ready tasks produced by a <code>Build.BatchRule</code> are coalesced into
+ * batches, such that each batch is executed by the rule in one go. When a task
+ * from such a rule is about to start, a limited number of other ready tasks are
+ * examined to find those from the same rule.
+ * </p>
+ * <p>
+ * In keep-going mode, a failed task prevents only those tasks which
+ * (transitively) depend upon it from executing. Cancelling the future returned
+ * from <code>build()</code> prevents any further tasks from starting, and
+ * signals those currently executing through their meter.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> since tasks may execute concurrently, the meter given to
+ * <code>build()</code> may be accessed from multiple threads at once.
+ * </p>
+ *
+ * @author David J. Pearce
+ */
+public class ParallelBuildProject extends SequentialBuildProject {
+
+	/**
+	 * Executor used for reading the sources of a task before it is executed. This
+	 * is <code>null</code> if sources are not prefetched.
+	 */
+	private ExecutorService prefetcher;
+
+	/**
+	 * Determines the order in which ready tasks are executed.
+	 */
+	private BuildScheduler scheduler = BuildScheduler.FIFO;
+
+	/**
+	 * The maximum total weight of tasks executing at once.
+	 */
+	private long budget = Long.MAX_VALUE;
+
+	public ParallelBuildProject(Path.Root root) {
+		super(root);
+	}
+
+	// ======================================================================
+	// Configuration Interface
+	// ======================================================================
+
+	/**
+	 * Set the executor used for reading the sources of each task once it is ready,
+	 * but before it is submitted for execution. Typically, this executor should
+	 * not be bounded since it is dominated by blocking I/O (see
+	 * <code>BuildExecutors.newIoExecutor()</code>).
+	 *
+	 * @param executor
+	 *            The executor to use, or <code>null</code> to disable prefetching.
+	 */
+	public void setPrefetchExecutor(ExecutorService executor) {
+		this.prefetcher = executor;
+	}
+
+	/**
+	 * Set the scheduler which determines the order in which ready tasks are
+	 * executed.
+	 *
+	 * @param scheduler
+	 */
+	public void setScheduler(BuildScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Set the maximum total weight of tasks executing at once. A task whose weight
+	 * exceeds the budget by itself is still executed, but only when no other task
+	 * is executing. By default, there is no limit.
+	 *
+	 * @param budget
+	 */
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	// ======================================================================
+	// Build
+	// ======================================================================
+
+	@Override
+	public Future<Boolean> build(ExecutorService executor, Build.Meter meter) {
+		Execution execution = new Execution(executor, prefetcher, scheduler, meter, graph);
+		execution.start();
+		return execution.result;
+	}
+
+	@Override
+	protected boolean run(int index, Build.Meter meter) throws IOException {
+		long start = System.nanoTime();
+		boolean r = super.run(index, meter);
+		scheduler.record(tasks[index], System.nanoTime() - start);
+		return r;
+	}
+
+	@Override
+	protected boolean[] run(int[] indices, Build.Meter meter) throws IOException {
+		long start = System.nanoTime();
+		boolean[] r = super.run(indices, meter);
+		// Attribute time equally to each task in the batch
+		long time = (System.nanoTime() - start) / indices.length;
+		for (int i : indices) {
+			scheduler.record(tasks[i], time);
+		}
+		return r;
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Represents a single execution of the build graph. This tracks, for each
+	 * task, the number of tasks it depends upon which have not yet completed. When
+	 * this reaches zero the task is ready and is placed in the scheduler's queue.
+	 * For each ready task, a job is submitted to the executor which, when it
+	 * starts, runs whichever task the scheduler says is next. If that task does
+	 * not fit within the budget, it is held back (along with the job) until enough
+	 * executing tasks have completed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Execution {
+		private final ExecutorService executor;
+		private final ExecutorService prefetcher;
+		private final BuildScheduler scheduler;
+		private final CancellableMeter meter;
+		private final TaskGraph graph;
+		/**
+		 * The queue of ready tasks.
+		 */
+		private final BuildScheduler.Queue ready;
+		/**
+		 * The weight of each ready task.
+		 */
+		private final long[] weights;
+		/**
+		 * The next task to execute, which is being held back because it does not
+		 * fit within the budget (or <code>-1</code> if none). Guarded by
+		 * <code>ready</code>.
+		 */
+		private int head = -1;
+		/**
+		 * The number of tasks in the ready queue. Guarded by <code>ready</code>.
+		 */
+		private int queued;
+		/**
+		 * The total weight of tasks currently executing. Guarded by
+		 * <code>ready</code>.
+		 */
+		private long used;
+		/**
+		 * The number of tasks currently executing. Guarded by <code>ready</code>.
+		 */
+		private int running;
+		/**
+		 * The number of jobs held back waiting for the budget. Guarded by
+		 * <code>ready</code>.
+		 */
+		private int parked;
+		/**
+		 * Temporary list used for gathering batches. Guarded by <code>ready</code>.
+		 */
+		private final ArrayList<Integer> batched = new ArrayList<>();
+		/**
+		 * Number of incomplete tasks upon which each task depends.
+		 */
+		private final AtomicIntegerArray remaining;
+		/**
+		 * Identifies tasks which depend upon a failed task (non-zero means blocked).
+		 */
+		private final AtomicIntegerArray blocked;
+		/**
+		 * Number of tasks which have not yet completed.
+		 */
+		private final AtomicInteger outstanding;
+		/**
+		 * Signals that no further tasks should be submitted (e.g. because a task
+		 * failed).
+		 */
+		private final AtomicBoolean halted = new AtomicBoolean();
+		/**
+		 * The eventual outcome of this build.
+		 */
+		private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				// Signal tasks currently executing to abort
+				meter.cancel();
+				boolean r = super.cancel(mayInterruptIfRunning);
+				halt();
+				return r;
+			}
+		};
+
+		public Execution(ExecutorService executor, ExecutorService prefetcher, BuildScheduler scheduler,
+				Build.Meter meter, TaskGraph graph) {
+			this.executor = executor;
+			this.prefetcher = prefetcher;
+			this.scheduler = scheduler;
+			this.ready = scheduler.initialise(graph);
+			this.meter = new CancellableMeter(meter);
+			this.graph = graph;
+			this.remaining = new AtomicIntegerArray(graph.size());
+			this.blocked = new AtomicIntegerArray(graph.size());
+			this.weights = new long[graph.size()];
+			this.outstanding = new AtomicInteger(graph.size());
+			for (int i = 0; i != graph.size(); ++i) {
+				remaining.set(i, graph.getPredecessors(i).length);
+			}
+		}
+
+		/**
+		 * Begin execution by submitting all tasks which have no dependencies.
+		 */
+		public void start() {
+			if (manifest != null) {
+				manifest.reset();
+			}
+			failures = Collections.synchronizedList(new ArrayList<>());
+			countConsumers();
+			if (graph.size() == 0) {
+				complete(true);
+			} else {
+				for (int i = 0; i != graph.size(); ++i) {
+					// NOTE: cannot use remaining here, since tasks already submitted
+					// may have released others.
+					if (graph.getPredecessors(i).length == 0) {
+						submit(i);
+					}
+				}
+			}
+		}
+
+		private void submit(int index) {
+			if (!halted.get() && !result.isDone()) {
+				try {
+					if (prefetcher != null) {
+						prefetcher.submit(() -> prefetch(index));
+					} else {
+						enqueue(index);
+					}
+				} catch (Throwable t) {
+					// e.g. executor was shutdown
+					fail(t);
+				}
+			}
+		}
+
+		/**
+		 * Read the sources for a given task, such that their contents are available
+		 * in memory when it executes, and then submit it for execution.
+		 *
+		 * @param index
+		 */
+		private void prefetch(int index) {
+			for (Path.Entry<?> source : graph.getTask(index).getSources()) {
+				if (halted.get()) {
+					return;
+				}
+				try {
+					source.read();
+				} catch (Throwable t) {
+					// NOTE: errors are reported when the task itself reads this source.
+				}
+			}
+			try {
+				enqueue(index);
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/**
+		 * Place a given task in the ready queue, and submit a job to the executor
+		 * which will run the next ready task.
+		 *
+		 * @param index
+		 */
+		private void enqueue(int index) {
+			long weight = (budget == Long.MAX_VALUE) ? 0 : graph.getTask(index).getWeight();
+			synchronized (ready) {
+				weights[index] = weight;
+				ready.add(index);
+				queued++;
+			}
+			executor.submit(this::dispatch);
+		}
+
+		/**
+		 * Run the next ready task, provided it fits within the budget. Otherwise, it
+		 * is held back until sufficient executing tasks have completed. If the task
+		 * can be batched, then other ready tasks from the same rule are run with it.
+		 * Since every ready task has its own job, some jobs will find their task has
+		 * already been run as part of a batch.
+		 */
+		private void dispatch() {
+			int[] batch;
+			long weight;
+			synchronized (ready) {
+				if (head < 0) {
+					if (queued == 0) {
+						// Task already run as part of a batch
+						return;
+					}
+					head = ready.next();
+					queued--;
+				}
+				weight = weights[head];
+				if (running > 0 && used + weight > budget) {
+					parked++;
+					return;
+				}
+				int next = head;
+				head = -1;
+				used += weight;
+				running++;
+				if (origins[next] instanceof Build.BatchRule) {
+					weight += gather(next);
+					batch = batched.stream().mapToInt(Integer::intValue).toArray();
+					batched.clear();
+				} else {
+					batch = new int[] { next };
+				}
+			}
+			try {
+				run(batch);
+			} finally {
+				int n;
+				synchronized (ready) {
+					used -= weight;
+					running--;
+					n = parked;
+					parked = 0;
+				}
+				// Resubmit any jobs which were held back
+				try {
+					for (int i = 0; i != n; ++i) {
+						executor.submit(this::dispatch);
+					}
+				} catch (Throwable t) {
+					// e.g. executor was shutdown
+					fail(t);
+				}
+			}
+		}
+
+		/**
+		 * Gather other ready tasks produced by the same rule as a given task, such
+		 * that they can be executed together. This examines at most as many ready
+		 * tasks as the maximum batch size, and returns any which are not needed to
+		 * the ready queue. Tasks are only included if they fit within the budget.
+		 * Must be called whilst holding the lock on <code>ready</code>.
+		 *
+		 * @param index
+		 * @return The total weight of tasks gathered (excluding the given task).
+		 */
+		private long gather(int index) {
+			Build.BatchRule rule = (Build.BatchRule) origins[index];
+			int max = rule.getMaxBatchSize();
+			int n = Math.min(queued, max);
+			ArrayList<Integer> others = new ArrayList<>();
+			long weight = 0;
+			batched.add(index);
+			for (int i = 0; i < n && batched.size() < max; ++i) {
+				int j = ready.next();
+				queued--;
+				if (origins[j] == rule && used + weights[j] <= budget) {
+					batched.add(j);
+					used += weights[j];
+					weight += weights[j];
+				} else {
+					others.add(j);
+				}
+			}
+			for (int j : others) {
+				ready.add(j);
+				queued++;
+			}
+			return weight;
+		}
+
+		private void run(int[] batch) {
+			try {
+				if (halted.get() || result.isDone()) {
+					return;
+				}
+				boolean[] results;
+				try {
+					results = (origins[batch[0]] instanceof Build.BatchRule) ? execute(batch, meter)
+							: new boolean[] { execute(batch[0], meter) };
+				} finally {
+					for (int index : batch) {
+						releaseContents(index);
+					}
+				}
+				for (int i = 0; i != batch.length; ++i) {
+					int index = batch[i];
+					if (results[i]) {
+						release(index, true);
+					} else if (!meter.isCancelled()) {
+						failures.add(graph.getTask(index));
+						if (keepGoing) {
+							release(index, false);
+						} else {
+							// Task failed, hence build cannot succeed.
+							complete(false);
+							return;
+						}
+					}
+				}
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+
+		/**
+		 * Release all tasks which are waiting on a given task that has finished. If
+		 * that task did not succeed then those depending upon it are blocked and,
+		 * rather than being executed, are themselves released in turn (along with
+		 * their sources).
+		 *
+		 * @param index
+		 * @param succeeded
+		 * @throws IOException
+		 */
+		private void release(int index, boolean succeeded) throws IOException {
+			ArrayDeque<Integer> worklist = new ArrayDeque<>();
+			int count = 0;
+			for (;;) {
+				count++;
+				for (int j : graph.getSuccessors(index)) {
+					if (!succeeded) {
+						blocked.set(j, 1);
+					}
+					if (remaining.decrementAndGet(j) == 0) {
+						if (blocked.get(j) != 0) {
+							worklist.push(j);
+						} else {
+							submit(j);
+						}
+					}
+				}
+				if (worklist.isEmpty()) {
+					break;
+				}
+				index = worklist.pop();
+				succeeded = false;
+				releaseContents(index);
+			}
+			// Check whether we're all done
+			if (outstanding.addAndGet(-count) == 0) {
+				complete(failures.isEmpty());
+			}
+		}
+
+		private void complete(boolean outcome) {
+			if (halt()) {
+				if (outcome) {
+					meter.done();
+				}
+				result.complete(outcome);
+			}
+		}
+
+		private void fail(Throwable t) {
+			if (halt()) {
+				result.completeExceptionally(t);
+			}
+		}
+
+		/**
+		 * Prevent further tasks from being executed and save any persistent state
+		 * (e.g. the build manifest). This happens at most once, and returns
+		 * <code>true</code> only for the caller which actually halted the build. If
+		 * saving fails, the build completes with that error.
+		 *
+		 * @return
+		 */
+		private boolean halt() {
+			if (!halted.getAndSet(true)) {
+				try {
+					saveManifest();
+					scheduler.finish();
+				} catch (Throwable t) {
+					result.completeExceptionally(t);
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
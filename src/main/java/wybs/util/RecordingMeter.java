@@ -0,0 +1,246 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import wybs.lang.Build;
+
+/**
+ * <p>
+ * An implementation of <code>Build.Meter</code> which records every fork, step
+ * and done event, along with a timestamp, the thread on which it occurred and
+ * its nesting depth. The recorded events can then be exported in the Chrome
+ * trace-event format (e.g. for viewing in Perfetto or
+ * <code>chrome://tracing</code>), or as a flat summary of the time spent in
+ * each (sub)task.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> a recording meter may be safely used from multiple threads at
+ * once.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class RecordingMeter implements Build.Meter {
+	/**
+	 * The events recorded so far, shared by all meters forked from the same root.
+	 */
+	private final ConcurrentLinkedQueue<Event> events;
+
+	/**
+	 * The time origin for this recording, shared by all meters forked from the
+	 * same root.
+	 */
+	private final long origin;
+
+	/**
+	 * The name of this (sub)task.
+	 */
+	private final String name;
+
+	/**
+	 * The name of the enclosing (sub)task, or the empty string for the root.
+	 */
+	private final String parent;
+
+	/**
+	 * The nesting depth of this (sub)task.
+	 */
+	private final int depth;
+
+	/**
+	 * The time at which this (sub)task started, relative to the origin.
+	 */
+	private final long start;
+
+	/**
+	 * The thread on which this (sub)task started.
+	 */
+	private final long thread;
+
+	public RecordingMeter(String name) {
+		this(new ConcurrentLinkedQueue<>(), System.nanoTime(), name, "", 0);
+	}
+
+	private RecordingMeter(ConcurrentLinkedQueue<Event> events, long origin, String name, String parent,
+			int depth) {
+		this.events = events;
+		this.origin = origin;
+		this.name = name;
+		this.parent = parent;
+		this.depth = depth;
+		this.start = System.nanoTime() - origin;
+		this.thread = Thread.currentThread().getId();
+	}
+
+	@Override
+	public Build.Meter fork(String name) {
+		return new RecordingMeter(events, origin, name, this.name, depth + 1);
+	}
+
+	@Override
+	public void step(String tag) {
+		long now = System.nanoTime() - origin;
+		events.add(new Event(tag, name, now, -1, Thread.currentThread().getId(), depth + 1));
+	}
+
+	@Override
+	public void done() {
+		long now = System.nanoTime() - origin;
+		events.add(new Event(name, parent, start, now - start, thread, depth));
+	}
+
+	/**
+	 * Get the events recorded so far, ordered by time.
+	 *
+	 * @return
+	 */
+	public List<Event> getEvents() {
+		ArrayList<Event> es = new ArrayList<>(events);
+		es.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+		return es;
+	}
+
+	/**
+	 * Write recorded events in the Chrome trace-event (JSON) format. Completed
+	 * (sub)tasks are written as "complete" events, whilst steps are written as
+	 * "instant" events.
+	 *
+	 * @param out
+	 */
+	public void writeTrace(PrintStream out) {
+		out.println("{\"traceEvents\":[");
+		List<Event> es = getEvents();
+		for (int i = 0; i != es.size(); ++i) {
+			Event e = es.get(i);
+			out.print("{\"name\":\"" + escape(e.name) + "\",\"cat\":\"" + escape(e.parent) + "\"");
+			if (e.duration >= 0) {
+				out.print(",\"ph\":\"X\",\"dur\":" + micros(e.duration));
+			} else {
+				out.print(",\"ph\":\"i\",\"s\":\"t\"");
+			}
+			out.print(",\"ts\":" + micros(e.timestamp) + ",\"pid\":1,\"tid\":" + e.thread);
+			out.print(",\"args\":{\"depth\":" + e.depth + "}}");
+			out.println(i + 1 == es.size() ? "" : ",");
+		}
+		out.println("],\"displayTimeUnit\":\"ms\"}");
+		out.flush();
+	}
+
+	/**
+	 * Write a flat summary of recorded events. For each distinct (sub)task name,
+	 * this gives the number of times it completed and the total time taken. For
+	 * each distinct step, this gives the number of times it occurred.
+	 *
+	 * @param out
+	 */
+	public void writeSummary(PrintStream out) {
+		TreeMap<String, long[]> tasks = new TreeMap<>();
+		TreeMap<String, long[]> steps = new TreeMap<>();
+		for (Event e : events) {
+			if (e.duration >= 0) {
+				long[] entry = tasks.computeIfAbsent(e.name, k -> new long[2]);
+				entry[0]++;
+				entry[1] += e.duration;
+			} else {
+				steps.computeIfAbsent(e.name, k -> new long[1])[0]++;
+			}
+		}
+		for (Map.Entry<String, long[]> e : tasks.entrySet()) {
+			long[] entry = e.getValue();
+			out.println(e.getKey() + " x" + entry[0] + " [" + (entry[1] / 1000000) + "ms]");
+		}
+		for (Map.Entry<String, long[]> e : steps.entrySet()) {
+			out.println(e.getKey() + " x" + e.getValue()[0]);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Represents a single recorded event. This is either a completed (sub)task, in
+	 * which case it has a non-negative duration, or a step.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Event {
+		/**
+		 * Name of the (sub)task or step tag.
+		 */
+		public final String name;
+		/**
+		 * Name of the enclosing (sub)task.
+		 */
+		public final String parent;
+		/**
+		 * Time (in nanoseconds) at which this event occurred, or started, relative to
+		 * the start of the recording.
+		 */
+		public final long timestamp;
+		/**
+		 * Duration (in nanoseconds) of this event, or <code>-1</code> for a step.
+		 */
+		public final long duration;
+		/**
+		 * Identifier of the thread on which this event occurred, or started.
+		 */
+		public final long thread;
+		/**
+		 * Nesting depth of this event.
+		 */
+		public final int depth;
+
+		private Event(String name, String parent, long timestamp, long duration, long thread, int depth) {
+			this.name = name;
+			this.parent = parent;
+			this.timestamp = timestamp;
+			this.duration = duration;
+			this.thread = thread;
+			this.depth = depth;
+		}
+	}
+
+	private static long micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	private static String escape(String str) {
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i != str.length(); ++i) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '"':
+				r.append("\\\"");
+				break;
+			case '\\':
+				r.append("\\\\");
+				break;
+			default:
+				if (c < 0x20) {
+					r.append(String.format("\\u%04x", (int) c));
+				} else {
+					r.append(c);
+				}
+			}
+		}
+		return r.toString();
+	}
+}
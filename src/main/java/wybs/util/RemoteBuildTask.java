@@ -0,0 +1,104 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Function;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * A build task which is executed by a worker from a given
+ * <code>WorkerPool</code>, rather than in this JVM. The contents of each source
+ * are serialised using its content type and shipped to the worker, and the
+ * contents returned by the worker are deserialised using the target's content
+ * type. Thus, for example, a task whose sources and target are
+ * <code>SyntacticHeap</code>s exchanges their serialised bytes.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ * @param <T>
+ */
+public class RemoteBuildTask<S, T> extends AbstractBuildTask<S, T> {
+	/**
+	 * Step reported to the meter once the task has been executed by a worker.
+	 */
+	public static final String REMOTE = "task.remote";
+
+	/**
+	 * The pool of workers used to execute this task.
+	 */
+	private final WorkerPool pool;
+
+	/**
+	 * Identifies the handler used by the worker to execute this task.
+	 */
+	private final String kind;
+
+	public RemoteBuildTask(Build.Project project, WorkerPool pool, String kind, Path.Entry<T> target,
+			Collection<Path.Entry<S>> sources) {
+		super(project, target, sources);
+		this.pool = pool;
+		this.kind = kind;
+	}
+
+	/**
+	 * Get the kind of this task, which identifies the handler used by the worker
+	 * to execute it.
+	 *
+	 * @return
+	 */
+	public String getKind() {
+		return kind;
+	}
+
+	@Override
+	public Function<Build.Meter, Boolean> initialise() throws IOException {
+		return (meter) -> {
+			try {
+				List<byte[]> bytes = new ArrayList<>();
+				for (Path.Entry<S> source : sources) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					source.contentType().write(out, source.read());
+					bytes.add(out.toByteArray());
+				}
+				byte[] result = pool.execute(kind, bytes, meter);
+				meter.step(REMOTE);
+				if (result == null) {
+					return false;
+				}
+				target.write(target.contentType().read(target, new ByteArrayInputStream(result)));
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException e) {
+				// NOTE: this is not a failure of the task itself, hence the build is
+				// aborted rather than reporting it as such.
+				Thread.currentThread().interrupt();
+				CancellationException c = new CancellationException("interrupted waiting for build worker");
+				c.initCause(e);
+				throw c;
+			}
+		};
+	}
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package wybs.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
@@ -23,6 +24,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
 import wybs.lang.*;
@@ -42,6 +44,12 @@ import wyfs.lang.Path;
  * @author David J. Pearce
  */
 public class SequentialBuildProject implements Build.Project {
+	/**
+	 * Step reported to the build meter when a task is skipped because it is
+	 * up-to-date.
+	 */
+	public static final String SKIPPED = "task.skipped";
+
 	/**
 	 * The top-level root for the project. Everything is below this.
 	 */
@@ -59,6 +67,19 @@ public class SequentialBuildProject implements Build.Project {
 	 */
 	protected final ArrayList<Build.Rule> rules;
 
+	/**
+	 * The tasks produced by each rule when it was last applied. This allows rules
+	 * to be reapplied incrementally.
+	 */
+	protected final IdentityHashMap<Build.Rule, List<Build.Task>> produced = new IdentityHashMap<>();
+
+	/**
+	 * The dependency graph between the instantiated build tasks. This is
+	 * <code>null</code> when the project is dirty and the build graph needs to be
+	 * refreshed.
+	 */
+	protected TaskGraph graph;
+
 	/**
 	 * The set of instantiated build tasks in topological order. This is
 	 * <code>null</code> when the project is dirty and the build graph needs to be
@@ -67,10 +88,98 @@ public class SequentialBuildProject implements Build.Project {
 	protected Build.Task[] tasks;
 
 	/**
-	 * The set of task instances for each task.
+	 * The rule which produced each task, in topological order.
+	 */
+	protected Build.Rule[] origins;
+
+	/**
+	 * The set of task instances for each task. Tasks are initialised lazily, when
+	 * they are first executed, and hence an instance is <code>null</code> until
+	 * then. This ensures that tasks which are skipped, or never reached because of
+	 * an earlier failure, are not needlessly initialised.
 	 */
 	protected Function<Build.Meter,Boolean>[] instances;
 
+	/**
+	 * Identifies the build manifest within the project root. This is
+	 * <code>null</code> when incremental builds are disabled.
+	 */
+	protected Path.ID manifestID;
+
+	/**
+	 * The build manifest recording the state of each task when it was last
+	 * executed. This is used to skip tasks which are up-to-date, and is
+	 * <code>null</code> when incremental builds are disabled or the manifest has
+	 * yet to be loaded.
+	 */
+	protected BuildManifest manifest;
+
+	/**
+	 * Used to determine the signatures of declarations for fine-grained
+	 * dependency tracking, or <code>null</code> if this is disabled.
+	 */
+	protected Build.Signatures signatures;
+
+	/**
+	 * Identifies the persisted task plan within the project root. This is
+	 * <code>null</code> when plans are not used.
+	 */
+	protected Path.ID planID;
+
+	/**
+	 * The plan from which the build graph was most recently constructed.
+	 */
+	protected TaskPlan plan;
+
+	/**
+	 * The file to which the manifest writes ahead as tasks complete, such that an
+	 * interrupted build can be resumed. This is <code>null</code> when no journal
+	 * is used.
+	 */
+	protected File journal;
+
+	/**
+	 * The cache from which the targets of tasks can be restored without executing
+	 * them. This is <code>null</code> when no cache is used.
+	 */
+	protected BuildCache cache;
+
+	/**
+	 * Signals whether building should continue after a task fails. In which case,
+	 * every task which does not (transitively) depend upon a failed task is still
+	 * executed.
+	 */
+	protected boolean keepGoing;
+
+	/**
+	 * Signals whether intermediate targets (i.e. those consumed by other tasks)
+	 * are kept in memory rather than flushed to permanent storage.
+	 */
+	protected boolean pipelining;
+
+	/**
+	 * Signals whether the contents of an entry are released from memory once
+	 * every task which consumes it has finished.
+	 */
+	protected boolean releasing;
+
+	/**
+	 * The number of tasks which have yet to consume each entry in the current
+	 * build. This is <code>null</code> when contents are not being released.
+	 */
+	protected Map<Path.Entry<?>, AtomicInteger> consumers;
+
+	/**
+	 * The targets of tasks in the current build. This is <code>null</code> when
+	 * contents are not being released.
+	 */
+	protected Set<Path.Entry<?>> targets;
+
+	/**
+	 * The tasks which failed during the most recent build.
+	 */
+	protected List<Build.Task> failures = Collections.emptyList();
+
 	public SequentialBuildProject(Path.Root root) {
 		this.root = root;
 		this.rules = new ArrayList<>();
@@ -90,6 +199,131 @@ public class SequentialBuildProject implements Build.Project {
 		rules.add(rule);
 	}
 
+	/**
+	 * Enable incremental builds for this project. In this mode, any task whose
+	 * sources and target are unchanged since it was last successfully executed is
+	 * skipped. The state of each task is recorded in a build manifest stored in the
+	 * project root under the given ID. Note, the content type
+	 * <code>BuildManifest.ContentType</code> must be registered with the root's
+	 * content registry.
+	 *
+	 * @param id
+	 *            Identifies the build manifest within the project root, or
+	 *            <code>null</code> to disable incremental builds.
+	 */
+	public void setManifest(Path.ID id) {
+		this.manifestID = id;
+		this.manifest = null;
+	}
+
+	/**
+	 * Set the cache used by this project. Before a task is executed, the cache is
+	 * checked for a matching output and, if found, its target is restored from
+	 * that rather than executing the task. Otherwise, once the task has executed,
+	 * its target is stored in the cache.
+	 *
+	 * @param cache
+	 *            The cache to use, or <code>null</code> to disable caching.
+	 */
+	public void setCache(BuildCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Enable fine-grained dependency tracking for incremental builds. That is, a
+	 * task implementing <code>Build.FineGrainedTask</code> is only executed again
+	 * when the signature of some declaration it used has changed, rather than
+	 * whenever the contents of one of its sources have changed. This has no
+	 * effect unless incremental builds are enabled (see <code>setManifest()</code>).
+	 *
+	 * @param signatures
+	 *            Determines the signatures of declarations, or <code>null</code>
+	 *            to disable fine-grained tracking.
+	 */
+	public void setSignatures(Build.Signatures signatures) {
+		this.signatures = signatures;
+		if (manifest != null) {
+			manifest.setSignatures(signatures);
+		}
+	}
+
+	/**
+	 * Enable a write-ahead journal for incremental builds, such that a build which
+	 * is interrupted (e.g. because the process was killed) can resume from where it
+	 * stopped. Each task is recorded in the journal as soon as it completes, and
+	 * its target is flushed beforehand (unless being pipelined). The journal is
+	 * cleared whenever the manifest itself is flushed. This has no effect unless
+	 * incremental builds are enabled (see <code>setManifest()</code>).
+	 *
+	 * @param journal
+	 *            The journal file, or <code>null</code> to disable journalling.
+	 * @throws IOException
+	 */
+	public void setJournal(File journal) throws IOException {
+		this.journal = journal;
+		if (manifest != null) {
+			manifest.setJournal(journal);
+		}
+	}
+
+	/**
+	 * Enable persistent task plans, such that a project whose tasks are unchanged
+	 * since it was last planned (even by a different process) can reuse the
+	 * previous build graph. The plan is stored in the project root using
+	 * <code>TaskPlan.ContentType</code>, which must therefore be registered with
+	 * its content registry.
+	 *
+	 * @param id
+	 *            Identifies the plan within the root, or <code>null</code> to
+	 *            disable plans.
+	 */
+	public void setPlan(Path.ID id) {
+		this.planID = id;
+	}
+
+	/**
+	 * Determine whether or not building should continue after a task fails. When
+	 * enabled, every task which does not (transitively) depend upon a failed task
+	 * is still executed, and all failed tasks can be obtained afterwards from
+	 * <code>getFailures()</code>.
+	 *
+	 * @param keepGoing
+	 */
+	public void setKeepGoing(boolean keepGoing) {
+		this.keepGoing = keepGoing;
+	}
+
+	/**
+	 * Determine whether or not intermediate targets are pipelined. That is,
+	 * whether targets which are consumed by other tasks are kept in memory, rather
+	 * than being flushed to permanent storage. Since an entry caches its
+	 * contents, this avoids writing out intermediate targets and (after the next
+	 * refresh) reading and parsing them back in again. When enabled,
+	 * <code>flush()</code> only writes final targets and the build manifest,
+	 * whilst <code>flushAll()</code> writes everything (e.g. on shutdown).
+	 *
+	 * @param pipelining
+	 */
+	public void setPipelining(boolean pipelining) {
+		this.pipelining = pipelining;
+	}
+
+	/**
+	 * Specify whether or not the contents of an entry should be released from
+	 * memory once the last task consuming it has finished. This bounds the memory
+	 * used by a large build, since parsed sources are not retained after they are
+	 * no longer needed. Targets which are not consumed by any task are released
+	 * as soon as they are produced. Modified targets are first flushed to
+	 * permanent storage, except when pipelining where they are retained instead.
+	 * Modified entries which are not targets (e.g. sources edited in memory) are
+	 * never flushed, and hence are retained.
+	 *
+	 * @param releasing
+	 */
+	public void setReleasing(boolean releasing) {
+		this.releasing = releasing;
+	}
+
 	/**
 	 * Get the top-level root associated with this project.
 	 *
@@ -115,6 +349,29 @@ public class SequentialBuildProject implements Build.Project {
 		return Arrays.asList(tasks);
 	}
 
+	/**
+	 * Get the tasks which failed during the most recent build. Unless keep-going
+	 * mode is enabled, this contains at most one task.
+	 *
+	 * @return
+	 */
+	public List<Build.Task> getFailures() {
+		synchronized (failures) {
+			return new ArrayList<>(failures);
+		}
+	}
+
+	/**
+	 * Get the plan from which the current build graph was constructed, or
+	 * <code>null</code> if plans are not enabled (see <code>setPlan()</code>) or
+	 * the project has not been refreshed.
+	 *
+	 * @return
+	 */
+	public TaskPlan getPlan() {
+		return plan;
+	}
+
 	/**
 	 * Get the packages (i.e. dependencies) associated with this projects.
 	 *
@@ -137,30 +394,193 @@ public class SequentialBuildProject implements Build.Project {
 	 * Force root to flush entries to permanent storage (where appropriate). This is
 	 * essential as, at any given moment, path entries may only be stored in memory.
 	 * We must flush them to disk in order to preserve any changes that were made.
+	 * When pipelining is enabled, everything except intermediate targets is
+	 * flushed (including, for example, the build manifest and task plan).
 	 */
 	public void flush() throws IOException {
+		if (!pipelining || tasks == null) {
+			root.flush();
+		} else {
+			Set<Path.Entry<?>> intermediates = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (int i = 0; i != tasks.length; ++i) {
+				if (isIntermediate(i)) {
+					intermediates.add(tasks[i].getTarget());
+				}
+			}
+			for (Path.Entry<?> e : root.get(EVERYTHING)) {
+				if (!intermediates.contains(e)) {
+					e.flush();
+				}
+			}
+		}
+		if (manifest != null) {
+			// Manifest now saved, hence journal no longer required
+			manifest.clearJournal();
+		}
+	}
+
+	/**
+	 * Force root to flush all entries to permanent storage, including any
+	 * intermediate targets which are being pipelined.
+	 */
+	public void flushAll() throws IOException {
 		root.flush();
+		if (manifest != null) {
+			manifest.clearJournal();
+		}
+	}
+
+	/**
+	 * Check whether the target of the task at a given index in the topological
+	 * order is an intermediate target. That is, whether it is consumed by some
+	 * other task.
+	 *
+	 * @param index
+	 * @return
+	 */
+	protected boolean isIntermediate(int index) {
+		return graph.getSuccessors(index).length > 0;
 	}
 
 	/**
 	 * Force root to refresh entries from permanent storage (where appropriate). For
 	 * items which have been modified, this operation has no effect (i.e. the new
 	 * contents are retained).
+	 *
+	 * @throws CyclicDependencyError
+	 *             If the tasks arising from the build rules form a cycle.
 	 */
 	@Override
 	public void refresh() throws IOException {
 		// Refresh the root to ensure all filesystem changes are recognised.
 		root.refresh();
-		// Construct temporary list of tasks
-		ArrayList<Build.Task> tmp = new ArrayList<>();
 		// Match all rules to produce the list of tasks
+		produced.clear();
 		for (Build.Rule rule : rules) {
+			ArrayList<Build.Task> tmp = new ArrayList<>();
 			rule.apply(tmp);
+			produced.put(rule, tmp);
+		}
+		update();
+	}
+
+	/**
+	 * Incrementally refresh the project in response to a given set of changes.
+	 * Rather than refreshing the entire root, only the modified entries are
+	 * refreshed (unless entries have been added) and each rule is asked to update
+	 * the tasks it previously produced (see
+	 * <code>Build.Rule.apply(Build.Delta,...)</code>). Rules added since the last
+	 * refresh are applied from scratch.
+	 *
+	 * @param delta
+	 *            The changes to the project since it was last refreshed.
+	 * @throws CyclicDependencyError
+	 *             If the tasks arising from the build rules form a cycle.
+	 */
+	public void refresh(Build.Delta delta) throws IOException {
+		if (graph == null) {
+			// Never refreshed before, so must do everything.
+			refresh();
+			return;
+		}
+		if (!delta.getAdded().isEmpty()) {
+			// Refresh the root to ensure new files are recognised.
+			root.refresh();
+		}
+		for (Path.Entry<?> e : delta.getModified()) {
+			e.refresh();
+		}
+		for (Build.Rule rule : rules) {
+			List<Build.Task> tmp = produced.get(rule);
+			if (tmp == null) {
+				tmp = new ArrayList<>();
+				rule.apply(tmp);
+				produced.put(rule, tmp);
+			} else if (!delta.isEmpty()) {
+				rule.apply(delta, tmp);
+			}
+		}
+		update();
+	}
+
+	/**
+	 * Reconstruct the build graph from the tasks produced by each rule.
+	 *
+	 * @throws IOException
+	 */
+	private void update() throws IOException {
+		// Load build manifest (if applicable)
+		if (manifestID != null && manifest == null) {
+			Path.Entry<BuildManifest> e = root.get(manifestID, BuildManifest.ContentType);
+			this.manifest = (e != null) ? e.read() : new BuildManifest();
+			manifest.setSignatures(signatures);
+			manifest.setJournal(journal);
+		}
+		ArrayList<Build.Task> tmp = new ArrayList<>();
+		for (Build.Rule rule : rules) {
+			tmp.addAll(produced.get(rule));
+		}
+		if (graph != null && isUnchanged(tmp)) {
+			// Exactly the same tasks as before, so graph is unchanged.
+			this.instances = new Function[tasks.length];
+			return;
+		}
+		if (planID == null) {
+			// Construct build graph, which topologically sorts tasks
+			this.graph = new TaskGraph(tmp);
+		} else {
+			long fingerprint = TaskPlan.fingerprint(tmp);
+			if (plan == null) {
+				Path.Entry<TaskPlan> e = root.get(planID, TaskPlan.ContentType);
+				this.plan = (e != null) ? e.read() : null;
+			}
+			if (plan != null && plan.getFingerprint() == fingerprint && plan.size() == tmp.size()) {
+				// Tasks unchanged since last planned, so reuse previous plan
+				this.graph = new TaskGraph(tmp, plan);
+			} else {
+				// Construct build graph, which topologically sorts tasks
+				this.graph = new TaskGraph(tmp);
+				this.plan = graph.getPlan(fingerprint);
+				root.create(planID, TaskPlan.ContentType).write(plan);
+			}
+		}
+		this.tasks = graph.getTasks();
+		// Determine which rule produced each task
+		IdentityHashMap<Build.Task, Build.Rule> map = new IdentityHashMap<>();
+		for (Build.Rule rule : rules) {
+			for (Build.Task task : produced.get(rule)) {
+				map.put(task, rule);
+			}
+		}
+		this.origins = new Build.Rule[tasks.length];
+		for (int i = 0; i != tasks.length; ++i) {
+			origins[i] = map.get(tasks[i]);
 		}
-		// Topologically sort tasks
-		this.tasks = topologicalSort(tmp);
-		// Initialise task instances
-		this.instances = initialiseAll(tasks);
+		// Discard any existing task instances (tasks are initialised on demand)
+		this.instances = new Function[tasks.length];
+	}
+
+	/**
+	 * Check whether a given list of tasks is identical to that from which the
+	 * current build graph was constructed.
+	 *
+	 * @param tasks
+	 * @return
+	 */
+	private boolean isUnchanged(List<Build.Task> tasks) {
+		if (tasks.size() != this.tasks.length) {
+			return false;
+		}
+		IdentityHashMap<Build.Task, Build.Task> current = new IdentityHashMap<>();
+		for (Build.Task task : this.tasks) {
+			current.put(task, task);
+		}
+		for (Build.Task task : tasks) {
+			if (!current.containsKey(task)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	// ======================================================================
@@ -169,18 +589,21 @@ public class SequentialBuildProject implements Build.Project {
 
 	/**
 	 * Build a given set of source entries, including all files which depend upon
-	 * them.
+	 * them. Cancelling the returned future also cancels the meter given to each
+	 * task, allowing those currently executing to abort promptly.
 	 * @throws IOException
 	 *
 	 * @throws Exception
 	 */
 	@Override
 	public Future<Boolean> build(ExecutorService executor, Build.Meter meter) {
-		Future<Boolean> r = executor.submit(() -> execute(executor, meter, instances));
+		CancellableMeter m = new CancellableMeter(meter);
+		Future<Boolean> r = executor.submit(() -> execute(executor, m));
 		return new Future<Boolean>() {
 
 			@Override
 			public boolean cancel(boolean mayInterruptIfRunning) {
+				m.cancel();
 				return r.cancel(mayInterruptIfRunning);
 			}
 
@@ -221,92 +644,322 @@ public class SequentialBuildProject implements Build.Project {
 	// ======================================================================
 
 	/**
-	 * Execute a given set of build task instances in strict sequence. In other
-	 * words, do not allow concurrent execution of tasks which are independent of
-	 * each other.
+	 * Execute the build task instances in strict sequence. In other words, do not
+	 * allow concurrent execution of tasks which are independent of each other. In
+	 * keep-going mode, tasks which depend upon a failed task are not executed, but
+	 * all others are.
 	 *
 	 * @param executor
-	 * @param callables
+	 * @param meter
 	 * @return
 	 * @throws InterruptedException
 	 * @throws ExecutionException
+	 * @throws IOException
 	 */
-	private static boolean execute(ExecutorService executor, Build.Meter meter, Function<Build.Meter,Boolean>... callables)
-			throws InterruptedException, ExecutionException {
-		// Execute each task in sequential order. Since tasks are topologically sorted,
-		// we know tasks are executed in the correct order.
-		for (int i = 0; i != callables.length; ++i) {
-			// Extract ith task instance
-			Function<Build.Meter,Boolean> ith = callables[i];
-			// Execute it!
-			Future<Boolean> f = executor.submit(() -> ith.apply(meter));
-			if (!f.get()) {
+	private boolean execute(ExecutorService executor, Build.Meter meter)
+			throws InterruptedException, ExecutionException, IOException {
+		if (manifest != null) {
+			manifest.reset();
+		}
+		failures = Collections.synchronizedList(new ArrayList<>());
+		countConsumers();
+		// Identifies tasks which cannot execute because of an earlier failure
+		boolean[] blocked = new boolean[tasks.length];
+		try {
+			// Execute each task in sequential order. Since tasks are topologically sorted,
+			// we know tasks are executed in the correct order.
+			for (int i = 0; i != instances.length; ++i) {
+				final int index = i;
+				if (meter.isCancelled()) {
+					return false;
+				} else if (blocked[i]) {
+					// Propagate failure to dependents
+					for (int j : graph.getSuccessors(i)) {
+						blocked[j] = true;
+					}
+					// Blocked task is finished with its sources as well
+					releaseContents(index);
+					continue;
+				}
+				// Execute it!
+				Future<Boolean> f = executor.submit(() -> execute(index, meter));
+				boolean succeeded;
+				try {
+					succeeded = f.get();
+				} finally {
+					releaseContents(index);
+				}
+				if (!succeeded) {
+					if (meter.isCancelled()) {
+						return false;
+					}
+					failures.add(tasks[i]);
+					if (!keepGoing) {
+						return false;
+					}
+					for (int j : graph.getSuccessors(i)) {
+						blocked[j] = true;
+					}
+				}
+			}
+			return failures.isEmpty();
+		} finally {
+			saveManifest();
+		}
+	}
+
+	/**
+	 * Execute the task at a given index in the topological order. If incremental
+	 * builds are enabled, then the task is skipped when it is up-to-date, and its
+	 * state is recorded in the build manifest if it executes successfully. If a
+	 * cache is enabled, then the target is restored from the cache (if possible)
+	 * instead of executing the task. The task is given its own meter, forked from
+	 * the build meter and named after its target.
+	 *
+	 * @param index
+	 * @param meter
+	 * @return
+	 * @throws IOException
+	 */
+	protected boolean execute(int index, Build.Meter meter) throws IOException {
+		Build.Task task = tasks[index];
+		if (manifest != null && manifest.isUpToDate(task)) {
+			// Nothing has changed since this task was last executed.
+			meter.step(SKIPPED);
+			return true;
+		}
+		meter = meter.fork(task.getTarget().id().toString());
+		try {
+			String key = (cache != null) ? cache.key(task) : null;
+			if (key != null && cache.restore(key, task, meter)) {
+				// Target restored from cache, so nothing to execute.
+			} else if (!run(index, meter)) {
 				return false;
+			} else if (key != null) {
+				cache.store(key, task);
 			}
+			record(index);
+			return true;
+		} finally {
+			meter.done();
 		}
-		return true;
 	}
 
-	private static Function<Build.Meter,Boolean>[] initialiseAll(Build.Task... tasks) throws IOException {
-		Function<Build.Meter,Boolean>[] instances = new Function[tasks.length];
-		for(int i=0;i!=tasks.length;++i) {
-			instances[i] = tasks[i].initialise();
+	/**
+	 * Execute a batch of independent tasks produced by the same
+	 * <code>Build.BatchRule</code>. As for individual tasks, those which are
+	 * up-to-date or can be restored from the cache are not executed. The remainder
+	 * are executed together by the rule, under a single meter named after the
+	 * rule.
+	 *
+	 * @param batch
+	 *            The indices of tasks in the topological order.
+	 * @param meter
+	 * @return A flag for each task indicating whether or not it succeeded.
+	 * @throws IOException
+	 */
+	protected boolean[] execute(int[] batch, Build.Meter meter) throws IOException {
+		boolean[] results = new boolean[batch.length];
+		String[] keys = new String[batch.length];
+		ArrayList<Integer> pending = new ArrayList<>();
+		for (int i = 0; i != batch.length; ++i) {
+			Build.Task task = tasks[batch[i]];
+			if (manifest != null && manifest.isUpToDate(task)) {
+				// Nothing has changed since this task was last executed.
+				meter.step(SKIPPED);
+				results[i] = true;
+				continue;
+			}
+			keys[i] = (cache != null) ? cache.key(task) : null;
+			if (keys[i] != null && cache.restore(keys[i], task, meter)) {
+				// Target restored from cache, so nothing to execute.
+				record(batch[i]);
+				results[i] = true;
+			} else {
+				pending.add(i);
+			}
+		}
+		if (!pending.isEmpty()) {
+			int[] indices = new int[pending.size()];
+			for (int i = 0; i != indices.length; ++i) {
+				indices[i] = batch[pending.get(i)];
+			}
+			meter = meter.fork(origins[batch[0]].getClass().getSimpleName());
+			try {
+				boolean[] rs = run(indices, meter);
+				for (int i = 0; i != indices.length; ++i) {
+					int j = pending.get(i);
+					Build.Task task = tasks[indices[i]];
+					if (rs[i]) {
+						if (keys[j] != null) {
+							cache.store(keys[j], task);
+						}
+						record(indices[i]);
+						results[j] = true;
+					}
+				}
+			} finally {
+				meter.done();
+			}
 		}
-		return instances;
+		return results;
 	}
 
 	/**
-	 * A very simple implementation of a topological sort over build tasks.
+	 * Record that the task at a given index has successfully completed in the
+	 * manifest (if applicable). When journalling, the target is first flushed so
+	 * that it survives should the build be interrupted. Pipelined intermediates
+	 * are not flushed, but are recorded as unflushed and hence are rebuilt when
+	 * the journal is replayed.
 	 *
-	 * @param tasks
+	 * @param index
+	 * @throws IOException
 	 */
-	private static Build.Task[] topologicalSort(List<Build.Task> tasks) {
-		// Indicates whether tasks placed on stack or not.
-		BitSet placed = new BitSet();
-		// Holds topological ordering of tasks
-		ArrayList<Build.Task> stack = new ArrayList<>();
-		// Place each task in turn. This recursively ensures the ancestors for each task
-		// are placed first.
-		for (int i = 0; i != tasks.size(); ++i) {
-			if (!placed.get(i)) {
-				topologicalSort(i, tasks, placed, stack);
+	private void record(int index) throws IOException {
+		if (manifest != null) {
+			Build.Task task = tasks[index];
+			if (journal != null && !(pipelining && isIntermediate(index))) {
+				task.getTarget().flush();
 			}
+			manifest.record(task);
 		}
-		//
-		// Write out tasks as an array
-		return stack.toArray(new Build.Task[stack.size()]);
 	}
 
 	/**
-	 * Place the task at the give index into the topological order. The key is that
-	 * we must first ensure all ancestors are placed before we can place this task.
+	 * Run a batch of independent tasks using the rule which produced them.
+	 *
+	 * @param indices
+	 *            The indices of tasks in the topological order.
+	 * @param meter
+	 * @return
+	 * @throws IOException
+	 */
+	protected boolean[] run(int[] indices, Build.Meter meter) throws IOException {
+		ArrayList<Build.Task> batch = new ArrayList<>();
+		for (int i : indices) {
+			batch.add(tasks[i]);
+		}
+		return ((Build.BatchRule) origins[indices[0]]).execute(batch, meter);
+	}
+
+	/**
+	 * Run the instance of the task at a given index in the topological order,
+	 * initialising it first if this has not already happened. Since this is
+	 * executed on the build executor, initialisation happens in parallel where
+	 * possible.
 	 *
 	 * @param index
-	 *            Index in tasks list of the task being placed.
-	 * @param tasks
-	 *            The original list of tasks to be topological sorted.
-	 * @param placed
-	 *            Identifies tasks which have now been placed in the final ordering.
-	 * @param order
-	 *            The final ordering of tasks where the ancestors of a task are
-	 *            guaranteed to come before (i.e. have earlier indices) the task
-	 *            itself.
-	 */
-	private static void topologicalSort(int index, List<Build.Task> tasks, BitSet placed, List<Build.Task> order) {
-		// Extract task being placed
-		Build.Task task = tasks.get(index);
-		List<Path.Entry<?>> ancestors = task.getSources();
-		// First, place all ancestors
-		for (int i = 0; i != tasks.size(); ++i) {
-			Build.Task t = tasks.get(i);
-			// Check whether is an unplaced ancestor
-			if (ancestors.contains(t.getTarget()) && !placed.get(i)) {
-				// Yes, therefore place it
-				topologicalSort(i, tasks, placed, order);
+	 * @param meter
+	 * @return
+	 * @throws IOException
+	 */
+	protected boolean run(int index, Build.Meter meter) throws IOException {
+		Function<Build.Meter, Boolean> instance = instances[index];
+		if (instance == null) {
+			instance = tasks[index].initialise();
+			instances[index] = instance;
+		}
+		return instance.apply(meter);
+	}
+
+	/**
+	 * Determine how many tasks consume each entry in the current build, such that
+	 * its contents can be released once the last of them has finished.
+	 */
+	protected void countConsumers() {
+		if (!releasing) {
+			consumers = null;
+			targets = null;
+		} else {
+			IdentityHashMap<Path.Entry<?>, AtomicInteger> counts = new IdentityHashMap<>();
+			Set<Path.Entry<?>> produced = Collections.newSetFromMap(new IdentityHashMap<>());
+			for (Build.Task task : tasks) {
+				for (Path.Entry<?> source : task.getSources()) {
+					counts.computeIfAbsent(source, k -> new AtomicInteger()).incrementAndGet();
+				}
+				produced.add(task.getTarget());
+			}
+			consumers = counts;
+			targets = produced;
+		}
+	}
+
+	/**
+	 * Signal that a given task has finished (whether successfully or not). Every
+	 * source for which this was the last remaining consumer is released from
+	 * memory, as is the target if nothing consumes it.
+	 *
+	 * @param index
+	 * @throws IOException
+	 */
+	protected void releaseContents(int index) throws IOException {
+		Map<Path.Entry<?>, AtomicInteger> counts = consumers;
+		if (counts != null) {
+			Build.Task task = tasks[index];
+			for (Path.Entry<?> source : task.getSources()) {
+				AtomicInteger count = counts.get(source);
+				if (count != null && count.decrementAndGet() == 0) {
+					releaseContents(source);
+				}
+			}
+			if (!counts.containsKey(task.getTarget())) {
+				releaseContents(task.getTarget());
 			}
 		}
-		// Finally, place this task
-		placed.set(index);
-		order.add(task);
 	}
+
+	/**
+	 * Release the contents of a given entry from memory, provided they are
+	 * persisted. A modified target is flushed first (unless pipelining), but any
+	 * other modified entry is retained since it may hold edits which have not
+	 * been saved. Since no remaining task in the build consumes the entry, and
+	 * access to its contents is synchronised, this cannot disturb a task reading
+	 * it.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	private void releaseContents(Path.Entry<?> entry) throws IOException {
+		if (entry.isModified()) {
+			if (pipelining || !targets.contains(entry)) {
+				// Pipelined entries live only in memory, and sources are never flushed
+				return;
+			}
+			entry.flush();
+		}
+		// NOTE: contents are reloaded from permanent storage if needed again.
+		// Furthermore, refreshing has no effect if the entry has since been
+		// modified.
+		entry.refresh();
+	}
+
+	/**
+	 * Write the build manifest (if applicable) back to the project root. Note that
+	 * this does not flush it to permanent storage, which happens when the project
+	 * is flushed.
+	 *
+	 * @throws IOException
+	 */
+	protected void saveManifest() throws IOException {
+		if (manifest != null) {
+			// Discard records for tasks which no longer exist
+			manifest.retainAll(Arrays.asList(tasks));
+			root.create(manifestID, BuildManifest.ContentType).write(manifest);
+		}
+	}
+
+	/**
+	 * A content filter which matches every entry in a root.
+	 */
+	private static final Content.Filter<Object> EVERYTHING = new Content.Filter<Object>() {
+		@Override
+		public boolean matches(Path.ID id, Content.Type<Object> ct) {
+			return true;
+		}
+
+		@Override
+		public boolean matchesSubpath(Path.ID id) {
+			return true;
+		}
+	};
 }
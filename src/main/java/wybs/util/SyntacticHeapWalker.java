@@ -0,0 +1,119 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.Arrays;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+
+/**
+ * <p>
+ * Provides a depth-first traversal of syntactic items using an explicit stack,
+ * rather than recursion. Thus, arbitrarily long chains of operands (e.g. large
+ * blocks or deeply nested expressions) can be traversed without the risk of
+ * overflowing the call stack.
+ * </p>
+ * <p>
+ * Each item reached is passed to the visitor's <code>enter()</code> method
+ * which determines whether or not its operands are traversed. If so, then the
+ * visitor's <code>exit()</code> method is called for that item once all of its
+ * operands have been traversed. Thus, <code>enter()</code> and
+ * <code>exit()</code> give pre-order and post-order callbacks respectively.
+ * Operands are traversed in order, and <code>null</code> operands are skipped.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> the walker itself does not remember which items have been
+ * visited. Since items may be shared, a visitor would typically do this to
+ * avoid traversing the same item more than once (and to prevent looping on
+ * cyclic structures).
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class SyntacticHeapWalker {
+
+	/**
+	 * Receives callbacks for each item reached during a traversal.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Visitor {
+		/**
+		 * Called when a given item is reached, before any of its operands.
+		 *
+		 * @param item
+		 * @return <code>true</code> if the operands of this item should be traversed.
+		 */
+		public boolean enter(SyntacticItem item);
+
+		/**
+		 * Called after all operands of a given item have been traversed. This is
+		 * only called for items whose operands were traversed.
+		 *
+		 * @param item
+		 */
+		public default void exit(SyntacticItem item) {
+
+		}
+	}
+
+	/**
+	 * Traverse all items reachable from the root of a given heap.
+	 *
+	 * @param heap
+	 * @param visitor
+	 */
+	public static void walk(SyntacticHeap heap, Visitor visitor) {
+		walk(heap.getRootItem(), visitor);
+	}
+
+	/**
+	 * Traverse all items reachable from a given item.
+	 *
+	 * @param item
+	 * @param visitor
+	 */
+	public static void walk(SyntacticItem item, Visitor visitor) {
+		if (item == null || !visitor.enter(item)) {
+			return;
+		}
+		// Explicit stacks of items and the next operand of each to traverse
+		SyntacticItem[] items = new SyntacticItem[16];
+		int[] next = new int[16];
+		int depth = 0;
+		items[0] = item;
+		while (depth >= 0) {
+			item = items[depth];
+			int i = next[depth]++;
+			if (i >= item.size()) {
+				// All operands traversed
+				items[depth--] = null;
+				visitor.exit(item);
+			} else {
+				SyntacticItem child = item.get(i);
+				if (child != null && visitor.enter(child)) {
+					if (++depth == items.length) {
+						items = Arrays.copyOf(items, depth * 2);
+						next = Arrays.copyOf(next, depth * 2);
+					}
+					items[depth] = child;
+					next[depth] = 0;
+				}
+			}
+		}
+	}
+}
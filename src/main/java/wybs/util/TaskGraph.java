@@ -0,0 +1,352 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import wybs.lang.Build;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Represents the dependency graph between a given set of build tasks. A task
+ * depends upon another if one of its sources is the target of that task. Tasks
+ * are stored in topological order, meaning that the ancestors of a task are
+ * guaranteed to come before (i.e. have lower indices than) the task itself.
+ * </p>
+ * <p>
+ * The graph is constructed in time proportional to the number of tasks and
+ * edges, by first indexing every task according to the target it produces. In
+ * the event that the graph contains a cycle (including a task which consumes its
+ * own target), a <code>CyclicDependencyError</code> is thrown which identifies
+ * the entries involved. Likewise, if two or more tasks produce the same target
+ * then an <code>IllegalArgumentException</code> is thrown.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class TaskGraph {
+	/**
+	 * The tasks in this graph in topological order.
+	 */
+	private final Build.Task[] tasks;
+
+	/**
+	 * Identifies, for each task, the (distinct) tasks upon which it depends. These
+	 * are stored in increasing order.
+	 */
+	private final int[][] predecessors;
+
+	/**
+	 * Identifies, for each task, the (distinct) tasks which depend upon it. These
+	 * are stored in increasing order.
+	 */
+	private final int[][] successors;
+
+	/**
+	 * Identifies, for each task, its index in the list from which this graph was
+	 * constructed.
+	 */
+	private final int[] order;
+
+	public TaskGraph(List<Build.Task> tasks) {
+		final int n = tasks.size();
+		// Index each task by the target it produces
+		HashMap<Path.Entry<?>, Integer> producers = new HashMap<>(n * 2);
+		for (int i = 0; i != n; ++i) {
+			Path.Entry<?> target = tasks.get(i).getTarget();
+			if (producers.put(target, i) != null) {
+				throw new IllegalArgumentException("multiple build tasks produce " + target.id());
+			}
+		}
+		// Determine immediate ancestors of each task
+		int[][] preds = new int[n][];
+		for (int i = 0; i != n; ++i) {
+			preds[i] = predecessors(i, tasks.get(i), producers);
+		}
+		// Determine topological order
+		int[] order = sort(tasks, preds);
+		// Relabel everything according to the topological order
+		int[] label = new int[n];
+		for (int i = 0; i != n; ++i) {
+			label[order[i]] = i;
+		}
+		this.tasks = new Build.Task[n];
+		this.predecessors = new int[n][];
+		for (int i = 0; i != n; ++i) {
+			int[] ps = preds[order[i]];
+			for (int j = 0; j != ps.length; ++j) {
+				ps[j] = label[ps[j]];
+			}
+			Arrays.sort(ps);
+			this.tasks[i] = tasks.get(order[i]);
+			this.predecessors[i] = ps;
+		}
+		this.successors = invert(predecessors);
+		this.order = order;
+	}
+
+	/**
+	 * Construct the graph for a given list of tasks using a plan previously
+	 * obtained from a graph of tasks with the same fingerprint. This avoids
+	 * recomputing the dependencies between tasks and sorting them.
+	 *
+	 * @param tasks
+	 * @param plan
+	 */
+	public TaskGraph(List<Build.Task> tasks, TaskPlan plan) {
+		final int n = tasks.size();
+		if (n != plan.size()) {
+			throw new IllegalArgumentException("plan does not match tasks");
+		}
+		this.tasks = new Build.Task[n];
+		for (int i = 0; i != n; ++i) {
+			this.tasks[i] = tasks.get(plan.order[i]);
+		}
+		this.predecessors = copy(plan.predecessors);
+		this.successors = invert(predecessors);
+		this.order = plan.order.clone();
+	}
+
+	/**
+	 * Get a plan from which this graph can be reconstructed for tasks with a given
+	 * fingerprint.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	public TaskPlan getPlan(long fingerprint) {
+		return new TaskPlan(fingerprint, order.clone(), copy(predecessors));
+	}
+
+	/**
+	 * Get the number of tasks in this graph.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return tasks.length;
+	}
+
+	/**
+	 * Get the tasks in this graph in topological order.
+	 *
+	 * @return
+	 */
+	public Build.Task[] getTasks() {
+		return tasks;
+	}
+
+	/**
+	 * Get the task at a given index in the topological order.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public Build.Task getTask(int index) {
+		return tasks[index];
+	}
+
+	/**
+	 * Get the indices of those tasks upon which a given task directly depends.
+	 * <b>NOTE:</b> the returned array should not be modified.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int[] getPredecessors(int index) {
+		return predecessors[index];
+	}
+
+	/**
+	 * Get the indices of those tasks which directly depend upon a given task.
+	 * <b>NOTE:</b> the returned array should not be modified.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int[] getSuccessors(int index) {
+		return successors[index];
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Determine the distinct set of tasks which produce one or more sources of a
+	 * given task.
+	 *
+	 * @param index
+	 * @param task
+	 * @param producers
+	 * @return
+	 */
+	private static int[] predecessors(int index, Build.Task task, HashMap<Path.Entry<?>, Integer> producers) {
+		List<Path.Entry<?>> sources = task.getSources();
+		int[] ps = new int[sources.size()];
+		int count = 0;
+		for (int i = 0; i != sources.size(); ++i) {
+			Integer p = producers.get(sources.get(i));
+			if (p == null) {
+				continue;
+			} else if (p == index) {
+				// Task consumes its own target
+				Path.Entry<?> target = task.getTarget();
+				throw new CyclicDependencyError(Arrays.asList(target, target));
+			}
+			ps[count++] = p;
+		}
+		// Sort and remove duplicates
+		Arrays.sort(ps, 0, count);
+		int k = 0;
+		for (int i = 0; i < count; ++i) {
+			if (k == 0 || ps[k - 1] != ps[i]) {
+				ps[k++] = ps[i];
+			}
+		}
+		return k == ps.length ? ps : Arrays.copyOf(ps, k);
+	}
+
+	/**
+	 * Make a (deep) copy of a given set of edges.
+	 *
+	 * @param edges
+	 * @return
+	 */
+	private static int[][] copy(int[][] edges) {
+		int[][] r = new int[edges.length][];
+		for (int i = 0; i != edges.length; ++i) {
+			r[i] = edges[i].clone();
+		}
+		return r;
+	}
+
+	/**
+	 * Compute the inverse of a given set of edges.
+	 *
+	 * @param edges
+	 * @return
+	 */
+	private static int[][] invert(int[][] edges) {
+		final int n = edges.length;
+		int[] counts = new int[n];
+		for (int i = 0; i != n; ++i) {
+			for (int j : edges[i]) {
+				counts[j]++;
+			}
+		}
+		int[][] inverse = new int[n][];
+		for (int i = 0; i != n; ++i) {
+			inverse[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		// NOTE: since we visit in increasing order, the result is sorted
+		for (int i = 0; i != n; ++i) {
+			for (int j : edges[i]) {
+				inverse[j][counts[j]++] = i;
+			}
+		}
+		return inverse;
+	}
+
+	/**
+	 * Compute a topological order of the tasks using an iterative depth-first
+	 * search. This ensures all ancestors of a task are placed before the task
+	 * itself. If the search encounters a task which is currently being placed,
+	 * then there is a cycle.
+	 *
+	 * @param tasks
+	 * @param preds
+	 * @return
+	 */
+	private static int[] sort(List<Build.Task> tasks, int[][] preds) {
+		final int n = preds.length;
+		// Holds topological ordering of tasks
+		int[] order = new int[n];
+		int placed = 0;
+		// Identifies tasks which are placed (BLACK) or being placed (GREY)
+		byte[] colour = new byte[n];
+		// Explicit stack of tasks being placed, along with the next ancestor to
+		// consider for each.
+		int[] stack = new int[n];
+		int[] next = new int[n];
+		for (int i = 0; i != n; ++i) {
+			if (colour[i] != WHITE) {
+				continue;
+			}
+			int top = 0;
+			stack[0] = i;
+			next[0] = 0;
+			colour[i] = GREY;
+			while (top >= 0) {
+				int t = stack[top];
+				int[] ps = preds[t];
+				if (next[top] < ps.length) {
+					int p = ps[next[top]++];
+					if (colour[p] == WHITE) {
+						// Unplaced ancestor, therefore place it first
+						colour[p] = GREY;
+						top = top + 1;
+						stack[top] = p;
+						next[top] = 0;
+					} else if (colour[p] == GREY) {
+						// Ancestor is currently being placed
+						throw new CyclicDependencyError(cycle(tasks, stack, top, p));
+					}
+				} else {
+					// All ancestors placed, hence place this task
+					colour[t] = BLACK;
+					order[placed++] = t;
+					top = top - 1;
+				}
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Extract the chain of entries which make up a cycle. The stack contains the
+	 * current path through the graph, and the task at the given index is the one
+	 * which closes the cycle.
+	 *
+	 * @param tasks
+	 * @param stack
+	 * @param top
+	 * @param index
+	 * @return
+	 */
+	private static List<Path.Entry<?>> cycle(List<Build.Task> tasks, int[] stack, int top, int index) {
+		ArrayList<Path.Entry<?>> chain = new ArrayList<>();
+		int start = top;
+		while (stack[start] != index) {
+			start = start - 1;
+		}
+		// Each task on the stack consumes the target of the one above it, and the
+		// task on top consumes the target of the task closing the cycle.
+		chain.add(tasks.get(index).getTarget());
+		for (int i = top; i >= start; --i) {
+			chain.add(tasks.get(stack[i]).getTarget());
+		}
+		return chain;
+	}
+
+	private static final byte WHITE = 0;
+	private static final byte GREY = 1;
+	private static final byte BLACK = 2;
+}
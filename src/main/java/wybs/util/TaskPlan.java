@@ -0,0 +1,196 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import wybs.lang.Build;
+import wyfs.io.BinaryInputStream;
+import wyfs.io.BinaryOutputStream;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+
+/**
+ * <p>
+ * Records the shape of a <code>TaskGraph</code> (i.e. the topological order of
+ * its tasks and the dependencies between them) along with a fingerprint of the
+ * tasks from which it was constructed. When the tasks produced by a project's
+ * rules have the same fingerprint as before, the plan can be reused to
+ * construct the graph directly, thereby avoiding the need to recompute
+ * dependencies, sort them and check for cycles. Since a plan can be persisted
+ * (see <code>ContentType</code>), this applies even across processes.
+ * </p>
+ * <p>
+ * A fingerprint is determined by the kind of each task, along with the
+ * locations of its target and sources, in the order tasks are produced. This is
+ * a simple (non-cryptographic) hash, but computing it is still linear in the
+ * total length of those locations. Thus, a plan is only worthwhile when
+ * persisted, since within a single process a project whose tasks are unchanged
+ * already reuses its build graph directly.
+ * </p>
+ * <p>
+ * <b>NOTE:</b> plans are immutable, and never share their arrays with a
+ * <code>TaskGraph</code>.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public final class TaskPlan {
+	/**
+	 * Fingerprint of the tasks from which this plan was constructed.
+	 */
+	private final long fingerprint;
+
+	/**
+	 * Identifies, for each position in the topological order, the index of the
+	 * corresponding task in the order it was produced.
+	 */
+	final int[] order;
+
+	/**
+	 * Identifies, for each position in the topological order, the positions of
+	 * those tasks upon which it depends.
+	 */
+	final int[][] predecessors;
+
+	TaskPlan(long fingerprint, int[] order, int[][] predecessors) {
+		this.fingerprint = fingerprint;
+		this.order = order;
+		this.predecessors = predecessors;
+	}
+
+	/**
+	 * Get the fingerprint of the tasks from which this plan was constructed.
+	 *
+	 * @return
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Get the number of tasks in this plan.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return order.length;
+	}
+
+	/**
+	 * Compute the fingerprint of a given list of tasks.
+	 *
+	 * @param tasks
+	 * @return
+	 */
+	public static long fingerprint(List<Build.Task> tasks) {
+		long hash = FNV_OFFSET;
+		for (Build.Task task : tasks) {
+			hash = update(hash, task.getClass().getName());
+			hash = update(hash, task.getTarget().location());
+			for (Path.Entry<?> source : task.getSources()) {
+				hash = update(hash, source.location());
+			}
+			hash = (hash ^ 0xFFFF) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Update a given (64-bit FNV-1a) hash with the characters of a string,
+	 * followed by a separator.
+	 *
+	 * @param hash
+	 * @param str
+	 * @return
+	 */
+	private static long update(long hash, String str) {
+		for (int i = 0; i != str.length(); ++i) {
+			hash = (hash ^ str.charAt(i)) * FNV_PRIME;
+		}
+		return (hash ^ 0xFFFE) * FNV_PRIME;
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	// ======================================================================
+	// Content Type
+	// ======================================================================
+
+	/**
+	 * Version of the binary format.
+	 */
+	private static final int VERSION = 2;
+
+	/**
+	 * Responsible for reading and writing task plans in a compact binary format.
+	 * An out-of-date plan is read as <code>null</code>.
+	 */
+	public static final Content.Type<TaskPlan> ContentType = new Content.Type<TaskPlan>() {
+
+		@Override
+		public String getSuffix() {
+			return "plan";
+		}
+
+		@Override
+		public TaskPlan read(Path.Entry<TaskPlan> e, InputStream input) throws IOException {
+			BinaryInputStream in = new BinaryInputStream(input);
+			if (in.read_uv() != VERSION) {
+				return null;
+			}
+			long fingerprint = 0;
+			for (int i = 0; i != 8; ++i) {
+				fingerprint = (fingerprint << 8) | in.read_u8();
+			}
+			int n = in.read_uv();
+			int[] order = new int[n];
+			int[][] predecessors = new int[n][];
+			for (int i = 0; i != n; ++i) {
+				order[i] = in.read_uv();
+				int[] ps = new int[in.read_uv()];
+				for (int j = 0; j != ps.length; ++j) {
+					ps[j] = in.read_uv();
+				}
+				predecessors[i] = ps;
+			}
+			in.close();
+			return new TaskPlan(fingerprint, order, predecessors);
+		}
+
+		@Override
+		public void write(OutputStream output, TaskPlan plan) throws IOException {
+			BinaryOutputStream out = new BinaryOutputStream(output);
+			out.write_uv(VERSION);
+			for (int i = 56; i >= 0; i -= 8) {
+				out.write_u8((int) (plan.fingerprint >>> i) & 0xFF);
+			}
+			out.write_uv(plan.order.length);
+			for (int i = 0; i != plan.order.length; ++i) {
+				out.write_uv(plan.order[i]);
+				int[] ps = plan.predecessors[i];
+				out.write_uv(ps.length);
+				for (int p : ps) {
+					out.write_uv(p);
+				}
+			}
+			out.close();
+		}
+	};
+}
@@ -0,0 +1,333 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package wybs.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import wybs.lang.Build;
+
+/**
+ * <p>
+ * A pool of connections to build workers (see <code>BuildWorker</code>), over
+ * which tasks can be executed. Each connection executes at most one task at a
+ * time, and is returned to the pool once that task completes. Since workers
+ * stay alive for as long as the pool is open, the same pool should be reused
+ * across builds.
+ * </p>
+ * <p>
+ * Workers are normally separate JVMs started via <code>launch()</code>.
+ * However, any worker which connects to the pool's server socket can be used
+ * and, for example, in-process workers running on their own threads are useful
+ * for testing. Every worker must present the pool's token when connecting,
+ * and connections which do not are rejected. This prevents other processes on
+ * the same machine from masquerading as workers.
+ * </p>
+ *
+ * @author David J. Pearce
+ *
+ */
+public class WorkerPool implements Closeable {
+	/**
+	 * Time (in milliseconds) to wait for each worker to connect.
+	 */
+	private static final int CONNECT_TIMEOUT = 30000;
+
+	/**
+	 * All connections opened by this pool.
+	 */
+	private final List<Connection> connections = new ArrayList<>();
+
+	/**
+	 * Connections which are not currently executing a task.
+	 */
+	private final LinkedBlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+
+	/**
+	 * The number of connections which have not failed.
+	 */
+	private final AtomicInteger live = new AtomicInteger();
+
+	/**
+	 * Worker processes started by this pool (if any).
+	 */
+	private final List<Process> processes = new ArrayList<>();
+
+	/**
+	 * Construct a pool by accepting a given number of worker connections on a
+	 * given server socket. Connections which do not present the given token are
+	 * rejected, and do not count towards the number of workers.
+	 *
+	 * @param server
+	 * @param n
+	 * @param token
+	 *            The token which each worker must present when connecting.
+	 * @throws IOException
+	 */
+	public WorkerPool(ServerSocket server, int n, String token) throws IOException {
+		server.setSoTimeout(CONNECT_TIMEOUT);
+		try {
+			while (connections.size() != n) {
+				Socket socket = server.accept();
+				Connection c;
+				try {
+					c = new Connection(socket, token);
+				} catch (IOException e) {
+					// Not a genuine worker, so ignore it
+					continue;
+				}
+				connections.add(c);
+				idle.add(c);
+				live.incrementAndGet();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Launch a given number of worker processes on this machine, and construct a
+	 * pool connected to them. Workers run in separate JVMs using the same class
+	 * path as this one, and obtain their handlers by instantiating a given class.
+	 *
+	 * @param n
+	 *            The number of workers to launch.
+	 * @param handlers
+	 *            A class with a public no-argument constructor which supplies the
+	 *            handlers for each worker.
+	 * @param jvmArgs
+	 *            Additional arguments for each worker JVM (e.g. "-Xmx2g").
+	 * @return
+	 * @throws IOException
+	 */
+	public static WorkerPool launch(int n, Class<? extends Supplier<Map<String, BuildWorker.Handler>>> handlers,
+			String... jvmArgs) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String token = newToken();
+		List<Process> processes = new ArrayList<>();
+		try (ServerSocket server = new ServerSocket(0, n, InetAddress.getLoopbackAddress())) {
+			for (int i = 0; i != n; ++i) {
+				List<String> command = new ArrayList<>();
+				command.add(java);
+				for (String arg : jvmArgs) {
+					command.add(arg);
+				}
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(BuildWorker.class.getName());
+				command.add(Integer.toString(server.getLocalPort()));
+				command.add(handlers.getName());
+				// NOTE: token is passed via the environment as the command line is
+				// visible to other users
+				ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+				builder.environment().put(BuildWorker.TOKEN_VARIABLE, token);
+				processes.add(builder.start());
+			}
+			WorkerPool pool = new WorkerPool(server, n, token);
+			pool.processes.addAll(processes);
+			return pool;
+		} catch (IOException e) {
+			for (Process p : processes) {
+				p.destroy();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Generate a random token for authenticating workers.
+	 *
+	 * @return
+	 */
+	public static String newToken() {
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Get the number of workers in this pool which remain usable.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return live.get();
+	}
+
+	/**
+	 * Execute a task of a given kind on the next available worker. This blocks
+	 * until a worker becomes available, or the build is cancelled.
+	 *
+	 * @param kind
+	 *            The kind of task, as understood by the worker's handlers.
+	 * @param sources
+	 *            The binary contents of each source.
+	 * @param meter
+	 *            The meter for the build, which is checked for cancellation
+	 *            whilst waiting for a worker.
+	 * @return The binary contents of the target, or <code>null</code> if the task
+	 *         failed or the build was cancelled before a worker became available.
+	 * @throws IOException
+	 *             If the task could not be executed (e.g. because the worker
+	 *             died).
+	 * @throws InterruptedException
+	 */
+	public byte[] execute(String kind, List<byte[]> sources, Build.Meter meter)
+			throws IOException, InterruptedException {
+		Connection c;
+		do {
+			if (live.get() == 0) {
+				throw new IOException("no workers available");
+			} else if (meter.isCancelled()) {
+				return null;
+			}
+			c = idle.poll(100, TimeUnit.MILLISECONDS);
+		} while (c == null);
+		try {
+			byte[] r = c.execute(kind, sources);
+			idle.add(c);
+			return r;
+		} catch (RemoteException e) {
+			// Worker remains usable
+			idle.add(c);
+			throw e;
+		} catch (IOException e) {
+			// Connection is broken, so discard it
+			live.decrementAndGet();
+			c.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all connections, thereby causing workers to exit.
+	 */
+	@Override
+	public void close() {
+		for (Connection c : connections) {
+			c.close();
+		}
+		live.set(0);
+		for (Process p : processes) {
+			try {
+				if (!p.waitFor(1, TimeUnit.SECONDS)) {
+					p.destroy();
+				}
+			} catch (InterruptedException e) {
+				p.destroy();
+			}
+		}
+	}
+
+	/**
+	 * Signals that a worker reported an error executing a task.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class RemoteException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public RemoteException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A single connection to a worker.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		public Connection(Socket socket, String token) throws IOException {
+			this.socket = socket;
+			try {
+				// Don't wait indefinitely for the handshake
+				socket.setSoTimeout(CONNECT_TIMEOUT);
+				this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				// Check handshake
+				if (in.readInt() != BuildWorker.MAGIC || in.readInt() != BuildWorker.VERSION) {
+					throw new IOException("invalid build worker handshake");
+				} else if (!MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8),
+						token.getBytes(StandardCharsets.UTF_8))) {
+					throw new IOException("invalid build worker token");
+				}
+				socket.setSoTimeout(0);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		public byte[] execute(String kind, List<byte[]> sources) throws IOException {
+			out.writeUTF(kind);
+			out.writeInt(sources.size());
+			for (byte[] bytes : sources) {
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
+			switch (in.readUnsignedByte()) {
+			case BuildWorker.OK: {
+				byte[] target = new byte[in.readInt()];
+				in.readFully(target);
+				return target;
+			}
+			case BuildWorker.FAILED:
+				return null;
+			case BuildWorker.ERROR:
+				throw new RemoteException(in.readUTF());
+			default:
+				throw new IOException("invalid build worker response");
+			}
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+		}
+	}
+}
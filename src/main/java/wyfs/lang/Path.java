@@ -150,6 +150,19 @@ public class Path {
 		 */
 		public long lastModified();
 
+		/**
+		 * Get the size (in bytes) of this file, or zero if it does not exist or its
+		 * size is unknown. For a file which has been modified, this is the size it
+		 * will have once flushed. Since determining this may be expensive,
+		 * implementations may cache it until the contents are next written or
+		 * touched.
+		 *
+		 * @return
+		 */
+		public default long size() {
+			return 0;
+		}
+
 		/**
 		 * Check whether this file has been modified or not.
 		 *
@@ -14,6 +14,7 @@
 package wyfs.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
 import wyfs.lang.Content;
@@ -22,7 +23,9 @@ import wyfs.lang.Path;
 /**
  * Provides a simple implementation of <code>Path.Entry</code>. This caches
  * content in a field and employs a <code>modifies</code> bit to determine if
- * that content needs to be written to permanent storage.
+ * that content needs to be written to permanent storage. Access to the cached
+ * content is synchronised, since an entry may be read by one build task (or
+ * prefetched) whilst another reads, writes or refreshes it.
  *
  * @author David J. Pearce
  *
@@ -33,6 +36,11 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	protected Content.Type<T> contentType;
 	protected T contents = null;
 	protected boolean modified = false;
+	/**
+	 * Size of the modified contents once flushed, or -1 if not yet determined.
+	 * This is reset whenever the contents change.
+	 */
+	private long size = -1;
 
 	public AbstractEntry(Path.ID mid) {
 		this.id = mid;
@@ -44,12 +52,13 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	}
 
 	@Override
-	public void touch() {
+	public synchronized void touch() {
 		this.modified = true;
+		this.size = -1;
 	}
 
 	@Override
-	public boolean isModified() {
+	public synchronized boolean isModified() {
 		return modified;
 	}
 
@@ -59,14 +68,53 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	}
 
 	@Override
-	public void refresh() throws IOException {
+	public synchronized long size() {
+		if (modified && contents != null && size >= 0) {
+			return size;
+		} else if (modified && contents != null) {
+			// Determine size of contents once flushed
+			final long[] count = new long[1];
+			OutputStream out = new OutputStream() {
+				@Override
+				public void write(int b) {
+					count[0]++;
+				}
+
+				@Override
+				public void write(byte[] bytes, int off, int len) {
+					count[0] += len;
+				}
+			};
+			try {
+				contentType.write(out, contents);
+				size = count[0];
+				return size;
+			} catch (IOException e) {
+				// Fall back to size in permanent storage
+			}
+		}
+		return storedSize();
+	}
+
+	/**
+	 * Get the size (in bytes) of this entry in permanent storage, or zero if it
+	 * does not exist.
+	 *
+	 * @return
+	 */
+	protected long storedSize() {
+		return 0;
+	}
+
+	@Override
+	public synchronized void refresh() throws IOException {
 		if(!modified) {
 			contents = null; // reset contents
 		}
 	}
 
 	@Override
-	public void flush() throws IOException {
+	public synchronized void flush() throws IOException {
 		if(modified && contents != null) {
 			contentType.write(outputStream(), contents);
 			this.modified = false;
@@ -74,7 +122,7 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	}
 
 	@Override
-	public T read() throws IOException {
+	public synchronized T read() throws IOException {
 		if (contents == null) {
 			contents = contentType.read(this,inputStream());
 		}
@@ -82,17 +130,19 @@ public abstract class AbstractEntry<T> implements Path.Entry<T> {
 	}
 
 	@Override
-	public void write(T contents) throws IOException {
+	public synchronized void write(T contents) throws IOException {
 		this.modified = true;
 		this.contents = contents;
+		this.size = -1;
 	}
 
 	@Override
-	public void associate(Content.Type<T> contentType, T contents) {
+	public synchronized void associate(Content.Type<T> contentType, T contents) {
 		if(this.contentType != null) {
 			throw new IllegalArgumentException("content type already associated with this entry");
 		}
 		this.contentType = contentType;
 		this.contents = contents;
+		this.size = -1;
 	}
 }
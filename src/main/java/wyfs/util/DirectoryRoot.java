@@ -198,6 +198,11 @@ public class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 			return file.lastModified();
 		}
 
+		@Override
+		protected long storedSize() {
+			return file.length();
+		}
+
 		public File file() {
 			return file;
 		}
@@ -121,6 +121,11 @@ public class VirtualRoot extends AbstractRoot<VirtualRoot.Folder> {
 			return lastModified;
 		}
 
+		@Override
+		protected long storedSize() {
+			return length;
+		}
+
 		@Override
 		public InputStream inputStream() {
 			return new ByteArrayInputStream(data,0,length);
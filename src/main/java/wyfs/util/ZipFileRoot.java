@@ -149,6 +149,11 @@ public final class ZipFileRoot extends AbstractRoot<ZipFileRoot.Folder> implemen
 			return entry.getTime();
 		}
 
+		@Override
+		protected long storedSize() {
+			return entry.bytes.length;
+		}
+
 		@Override
 		public boolean isModified() {
 			// cannot modify something in a Jar file.
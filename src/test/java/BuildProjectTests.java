@@ -0,0 +1,1299 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import wybs.lang.Build;
+import wybs.util.AbstractBuildRule;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractBuildTask;
+import wybs.util.BuildCache;
+import wybs.util.BuildDaemon;
+import wybs.util.BuildDelta;
+import wybs.util.BuildWorker;
+import wybs.util.BuildManifest;
+import wybs.util.CancellableMeter;
+import wybs.util.CriticalPathScheduler;
+import wybs.util.CyclicDependencyError;
+import wybs.util.ParallelBuildProject;
+import wybs.util.RecordingMeter;
+import wybs.util.RemoteBuildTask;
+import wybs.util.SequentialBuildProject;
+import wybs.util.TaskPlan;
+import wybs.util.WorkerPool;
+import wyfs.lang.Content;
+import wyfs.lang.Path;
+import wyfs.util.DefaultContentRegistry;
+import wyfs.util.DirectoryRoot;
+import wyfs.util.Trie;
+import wyfs.util.VirtualRoot;
+
+public class BuildProjectTests {
+	/**
+	 * A simple content type used for testing which treats files as text.
+	 */
+	private static final Content.Type<String> TEXT = new Content.Type<String>() {
+		@Override
+		public String getSuffix() {
+			return "txt";
+		}
+
+		@Override
+		public String read(Path.Entry<String> e, InputStream input) throws IOException {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			int b;
+			while ((b = input.read()) != -1) {
+				bout.write(b);
+			}
+			return new String(bout.toByteArray(), "UTF-8");
+		}
+
+		@Override
+		public void write(OutputStream output, String value) throws IOException {
+			output.write(value.getBytes("UTF-8"));
+		}
+	};
+
+	private static final Content.Registry REGISTRY = new DefaultContentRegistry().register(TEXT, "txt")
+			.register(BuildManifest.ContentType, "manifest")
+			.register(CriticalPathScheduler.ContentType, "durations")
+			.register(TaskPlan.ContentType, "plan");
+
+	private ExecutorService executor;
+
+	@Before
+	public void setup() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void sequential_01() throws Exception {
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		assertEquals("abcd", read(project, "d"));
+	}
+
+	@Test
+	public void parallel_01() throws Exception {
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		assertEquals("abcd", read(project, "d"));
+	}
+
+	@Test
+	public void parallel_02() throws Exception {
+		// Diamond: a => b, a => c, (b,c) => d
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		project.add(rule(new Concat(project, b, log, a), new Concat(project, d, log, b, c),
+				new Concat(project, c, log, a)));
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(3, log.size());
+		assertEquals("d", log.get(2));
+		assertEquals("abacd", read(project, "d"));
+	}
+
+	@Test
+	public void parallel_03() throws Exception {
+		// Failure of a task prevents its dependents from running
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		project.add(rule(new Fail(project, b, a), new Concat(project, c, log, b)));
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+		assertTrue(log.isEmpty());
+	}
+
+	@Test
+	public void parallel_04() throws Exception {
+		// Many independent tasks
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Build.Task[] tasks = new Build.Task[100];
+		for (int i = 0; i != tasks.length; ++i) {
+			tasks[i] = new Concat(project, create(project, "t" + i, null), log, a);
+		}
+		project.add(rule(tasks));
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(100, log.size());
+	}
+
+	@Test
+	public void parallel_05() throws Exception {
+		// Sources prefetched on separate executor
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		ThreadPoolExecutor io = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+		project.setPrefetchExecutor(io);
+		List<String> log = chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		assertEquals("abcd", read(project, "d"));
+		io.shutdown();
+		assertTrue(io.awaitTermination(10, TimeUnit.SECONDS));
+		// One prefetch per task
+		assertEquals(3, io.getCompletedTaskCount());
+	}
+
+	@Test
+	public void lazy_01() throws Exception {
+		// Tasks are not initialised until they are executed
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		project.add(rule(new Fail(project, b, a), new Unreachable(project, c, b)));
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+	}
+
+	@Test
+	public void keepgoing_01() throws Exception {
+		keepGoing(new SequentialBuildProject(new VirtualRoot(REGISTRY)));
+	}
+
+	@Test
+	public void keepgoing_02() throws Exception {
+		keepGoing(new ParallelBuildProject(new VirtualRoot(REGISTRY)));
+	}
+
+	private void keepGoing(SequentialBuildProject project) throws Exception {
+		// a => b (fails) => c, a => d, a => e (fails)
+		project.setKeepGoing(true);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		Path.Entry<String> e = create(project, "e", null);
+		Fail tb = new Fail(project, b, a);
+		Fail te = new Fail(project, e, a);
+		project.add(rule(tb, new Concat(project, c, log, b), new Concat(project, d, log, a), te));
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("d"), log);
+		List<Build.Task> failures = project.getFailures();
+		assertEquals(2, failures.size());
+		assertTrue(failures.contains(tb));
+		assertTrue(failures.contains(te));
+	}
+
+	@Test
+	public void cancel_01() throws Exception {
+		cancel(new SequentialBuildProject(new VirtualRoot(REGISTRY)));
+	}
+
+	@Test
+	public void cancel_02() throws Exception {
+		cancel(new ParallelBuildProject(new VirtualRoot(REGISTRY)));
+	}
+
+	private void cancel(SequentialBuildProject project) throws Exception {
+		// Cancellation is observed by a running task, and its dependents never run
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch aborted = new CountDownLatch(1);
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		project.add(rule(new Spin(project, b, started, aborted, a), new Concat(project, c, log, b)));
+		project.refresh();
+		Future<Boolean> result = project.build(executor, Build.NULL_METER);
+		started.await();
+		assertTrue(result.cancel(false));
+		assertTrue(result.isCancelled());
+		aborted.await();
+		assertTrue(log.isEmpty());
+	}
+
+	@Test
+	public void delta_01() throws Exception {
+		// Rules are reapplied incrementally
+		VirtualRoot src = new VirtualRoot(REGISTRY);
+		VirtualRoot bin = new VirtualRoot(REGISTRY);
+		SequentialBuildProject project = new SequentialBuildProject(src);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", "b");
+		project.add(new CopyRule(project, src, bin, log));
+		project.refresh();
+		List<Build.Task> tasks = project.getTasks();
+		assertEquals(2, tasks.size());
+		// Modifications alone leave tasks unchanged
+		a.write("A");
+		project.refresh(new BuildDelta().modify(a));
+		assertEquals(tasks, project.getTasks());
+		// Additions and removals are reflected
+		Path.Entry<String> c = create(project, "c", "c");
+		src.remove(b.id(), TEXT);
+		project.refresh(new BuildDelta().add(c).remove(b));
+		assertEquals(2, project.getTasks().size());
+		// Task for a is retained as is
+		Build.Task ta = tasks.get(0).getSources().contains(a) ? tasks.get(0) : tasks.get(1);
+		assertTrue(project.getTasks().stream().anyMatch(t -> t == ta));
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("a", "c"), sorted(log));
+		assertEquals("Aa", bin.get(Trie.fromString("a"), TEXT).read());
+	}
+
+	@Test
+	public void remote_01() throws Exception {
+		// Tasks executed by (in-process) workers
+		try (WorkerPool pool = workers(2)) {
+			ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+			Path.Entry<String> a = create(project, "a", "a");
+			Path.Entry<String> b = create(project, "b", null);
+			Path.Entry<String> c = create(project, "c", null);
+			project.add(rule(new RemoteBuildTask<>(project, pool, "concat", b, Arrays.asList(a)),
+					new RemoteBuildTask<>(project, pool, "concat", c, Arrays.asList(a, b))));
+			project.refresh();
+			assertTrue(project.build(executor, Build.NULL_METER).get());
+			assertEquals("aa!!", read(project, "c"));
+			// Workers remain available for subsequent builds
+			a.write("x");
+			assertTrue(project.build(executor, Build.NULL_METER).get());
+			assertEquals("xx!!", read(project, "c"));
+			assertEquals(2, pool.size());
+			// Nothing is executed once the build is cancelled
+			CancellableMeter meter = new CancellableMeter(Build.NULL_METER);
+			meter.cancel();
+			assertNull(pool.execute("concat", Arrays.asList("a".getBytes()), meter));
+		}
+	}
+
+	@Test
+	public void remote_02() throws Exception {
+		// Failures and errors reported by workers
+		try (WorkerPool pool = workers(1)) {
+			ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+			Path.Entry<String> a = create(project, "a", "a");
+			Path.Entry<String> b = create(project, "b", null);
+			project.add(rule(new RemoteBuildTask<>(project, pool, "fail", b, Arrays.asList(a))));
+			project.refresh();
+			assertFalse(project.build(executor, Build.NULL_METER).get());
+			project = new ParallelBuildProject(project.getRoot());
+			project.add(rule(new RemoteBuildTask<>(project, pool, "unknown", b, Arrays.asList(a))));
+			project.refresh();
+			try {
+				project.build(executor, Build.NULL_METER).get();
+				fail("expected remote error");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause().getCause() instanceof WorkerPool.RemoteException);
+			}
+			assertEquals(1, pool.size());
+		}
+	}
+
+	@Test
+	public void remote_03() throws Exception {
+		// Workers which do not present the pool's token are rejected
+		String token = WorkerPool.newToken();
+		try (ServerSocket server = new ServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+			Map<String, BuildWorker.Handler> rogue = new HashMap<>();
+			rogue.put("concat", (sources) -> "rogue".getBytes());
+			worker(server, WorkerPool.newToken(), rogue);
+			worker(server, token, handlers());
+			try (WorkerPool pool = new WorkerPool(server, 1, token)) {
+				assertEquals(1, pool.size());
+				assertEquals("a!", new String(pool.execute("concat", Arrays.asList("a".getBytes()), Build.NULL_METER)));
+			}
+		}
+	}
+
+	@Test
+	public void budget_01() throws Exception {
+		// Total weight of executing tasks is limited by the budget
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		project.setBudget(2);
+		AtomicInteger current = new AtomicInteger();
+		AtomicInteger max = new AtomicInteger();
+		Path.Entry<String> a = create(project, "a", "a");
+		ArrayList<Build.Task> tasks = new ArrayList<>();
+		for (int i = 0; i != 8; ++i) {
+			tasks.add(new Heavy(project, create(project, "t" + i, null), i == 0 ? 3 : 1, current, max, a));
+		}
+		project.add(rule(tasks.toArray(new Build.Task[tasks.size()])));
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(2, max.get());
+		for (int i = 0; i != 8; ++i) {
+			assertEquals("at" + i, read(project, "t" + i));
+		}
+	}
+
+	@Test
+	public void weight_01() throws Exception {
+		// Default weight is the total size of sources
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		Path.Entry<String> a = create(project, "a", "abc");
+		Path.Entry<String> b = create(project, "b", "de");
+		Path.Entry<String> c = create(project, "c", null);
+		project.flush();
+		assertEquals(5, new Concat(project, c, new ArrayList<>(), a, b).getWeight());
+		// Modifications not yet flushed are accounted for
+		a.write("abcdef");
+		assertEquals(8, new Concat(project, c, new ArrayList<>(), a, b).getWeight());
+		a.write("a");
+		assertEquals(3, new Concat(project, c, new ArrayList<>(), a, b).getWeight());
+	}
+
+	@Test
+	public void batch_01() throws Exception {
+		// Ready tasks from the same rule are executed in batches
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		List<Integer> batches = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> z = create(project, "z", null);
+		ArrayList<Build.Task> tasks = new ArrayList<>();
+		for (int i = 0; i != 6; ++i) {
+			tasks.add(new Concat(project, create(project, "t" + i, null), log, a));
+		}
+		project.add(new BatchRule(4, batches, tasks));
+		project.add(rule(new Concat(project, z, log, a)));
+		project.refresh();
+		// Hold the only thread until all tasks are ready
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch latch = new CountDownLatch(1);
+			single.submit(() -> {
+				latch.await();
+				return null;
+			});
+			Future<Boolean> result = project.build(single, Build.NULL_METER);
+			latch.countDown();
+			assertTrue(result.get());
+		} finally {
+			single.shutdownNow();
+		}
+		assertEquals(Arrays.asList(4, 2), batches);
+		assertEquals(7, log.size());
+		for (int i = 0; i != 6; ++i) {
+			assertEquals("at" + i, read(project, "t" + i));
+		}
+	}
+
+	@Test
+	public void pipeline_01() throws Exception {
+		// Intermediate targets are kept in memory
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		project.setPipelining(true);
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		project.flush();
+		Path.Entry<String> b = project.getRoot().get(Trie.fromString("b"), TEXT);
+		Path.Entry<String> d = project.getRoot().get(Trie.fromString("d"), TEXT);
+		assertTrue(b.isModified());
+		// Not yet written to permanent storage
+		assertEquals(0, b.lastModified());
+		assertEquals(2, b.size());
+		assertFalse(d.isModified());
+		assertEquals(4, d.size());
+		// Intermediate contents survive a refresh
+		project.refresh();
+		assertEquals("ab", b.read());
+		project.flushAll();
+		assertFalse(b.isModified());
+		assertEquals(2, b.size());
+	}
+
+	@Test
+	public void pipeline_02() throws Exception {
+		// Stale intermediates on disk are not considered up-to-date
+		File dir = folder.newFolder("src");
+		SequentialBuildProject project = new SequentialBuildProject(new DirectoryRoot(dir, REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		project.setPlan(Trie.fromString("build"));
+		project.setPipelining(true);
+		List<String> log = chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		project.flushAll();
+		// Rebuild after a change, leaving intermediates only in memory
+		Path.Entry<String> a = project.getRoot().get(Trie.fromString("a"), TEXT);
+		a.write("x");
+		a.flush();
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		project.flush();
+		// Manifest and plan are flushed, even when pipelining
+		assertTrue(new File(dir, "build.manifest").exists());
+		assertTrue(new File(dir, "build.plan").exists());
+		// A fresh project must rebuild the stale intermediates
+		SequentialBuildProject other = new SequentialBuildProject(new DirectoryRoot(dir, REGISTRY));
+		other.setManifest(Trie.fromString("build"));
+		log = chain(other);
+		other.getRoot().get(Trie.fromString("a"), TEXT).write("x");
+		other.refresh();
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c"), log);
+		assertEquals("xb", read(other, "b"));
+		assertEquals("xbcd", read(other, "d"));
+	}
+
+	@Test
+	public void release_01() throws Exception {
+		// Entries are released once their last consumer has finished
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		project.setReleasing(true);
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		for (String name : new String[] { "b", "c", "d" }) {
+			Path.Entry<String> e = project.getRoot().get(Trie.fromString(name), TEXT);
+			assertFalse(e.isModified());
+			assertEquals(name.charAt(0) - 'a' + 1, e.size());
+		}
+		// Modified sources are neither flushed nor released
+		Path.Entry<String> a = project.getRoot().get(Trie.fromString("a"), TEXT);
+		assertTrue(a.isModified());
+		assertEquals(0, a.lastModified());
+		// Released contents are reloaded on demand
+		assertEquals("abcd", read(project, "d"));
+	}
+
+	@Test
+	public void release_02() throws Exception {
+		// Sources of blocked tasks are also released
+		for (SequentialBuildProject project : new SequentialBuildProject[] {
+				new SequentialBuildProject(new VirtualRoot(REGISTRY)),
+				new ParallelBuildProject(new VirtualRoot(REGISTRY)) }) {
+			project.setReleasing(true);
+			project.setKeepGoing(true);
+			List<String> log = Collections.synchronizedList(new ArrayList<>());
+			Path.Entry<String> a = create(project, "a", "a");
+			Path.Entry<String> b = create(project, "b", null);
+			Path.Entry<String> c = create(project, "c", null);
+			Path.Entry<String> d = create(project, "d", null);
+			project.add(rule(new Concat(project, b, log, a), new Fail(project, c, a), new Concat(project, d, log, b, c)));
+			project.refresh();
+			assertFalse(project.build(executor, Build.NULL_METER).get());
+			assertEquals(Arrays.asList("b"), log);
+			assertFalse(b.isModified());
+			assertEquals("ab", b.read());
+		}
+	}
+
+	@Test
+	public void daemon_01() throws Exception {
+		// Builds requested over a local socket reuse the resident project
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		List<String> log = chain(project);
+		try (BuildDaemon daemon = new BuildDaemon(project, executor, REGISTRY, 0)) {
+			Thread t = daemon.start();
+			assertEquals(Arrays.asList("OK"), BuildDaemon.request(daemon.getPort(), daemon.getToken(), "BUILD"));
+			assertEquals(Arrays.asList("b", "c", "d"), log);
+			// Only the modified entry is refreshed, and only dependents rebuilt
+			project.getRoot().get(Trie.fromString("a"), TEXT).write("x");
+			assertEquals(Arrays.asList("OK"), BuildDaemon.request(daemon.getPort(), daemon.getToken(), "MODIFIED a txt", "BUILD"));
+			assertEquals("xbcd", read(project, "d"));
+			assertEquals(6, log.size());
+			// Clients must supply the token
+			assertEquals(Arrays.asList("ERROR not authorised"), BuildDaemon.request(daemon.getPort(), "x", "BUILD"));
+			assertEquals(6, log.size());
+			// Errors are reported
+			assertTrue(BuildDaemon.request(daemon.getPort(), daemon.getToken(), "MODIFIED a zip").get(0).startsWith("ERROR"));
+			assertEquals(Arrays.asList("OK"), BuildDaemon.request(daemon.getPort(), daemon.getToken(), "SHUTDOWN"));
+			t.join(10000);
+			assertFalse(t.isAlive());
+		}
+	}
+
+	@Test
+	public void daemon_02() throws Exception {
+		// Stalled connections are dropped, rather than blocking other clients
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		chain(project);
+		try (BuildDaemon daemon = new BuildDaemon(project, executor, REGISTRY, 0)) {
+			daemon.setTimeout(100);
+			Thread t = daemon.start();
+			try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), daemon.getPort())) {
+				assertEquals(Arrays.asList("OK"), BuildDaemon.request(daemon.getPort(), daemon.getToken(), "BUILD"));
+				assertEquals(-1, idle.getInputStream().read());
+			}
+			assertEquals(Arrays.asList("OK"), BuildDaemon.request(daemon.getPort(), daemon.getToken(), "SHUTDOWN"));
+			t.join(10000);
+			assertFalse(t.isAlive());
+		}
+	}
+
+	@Test
+	public void plan_01() throws Exception {
+		// Plans are reused when tasks are unchanged, even by another project
+		VirtualRoot root = new VirtualRoot(REGISTRY);
+		SequentialBuildProject project = new SequentialBuildProject(root);
+		project.setPlan(Trie.fromString("build"));
+		chain(project);
+		project.refresh();
+		TaskPlan plan = project.getPlan();
+		assertEquals(3, plan.size());
+		project.refresh();
+		assertSame(plan, project.getPlan());
+		SequentialBuildProject other = new SequentialBuildProject(root);
+		other.setPlan(Trie.fromString("build"));
+		List<String> log = chain(other);
+		other.refresh();
+		assertSame(plan, other.getPlan());
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		// Plan is recomputed when tasks change
+		other.add(rule(new Concat(other, create(other, "e", null), log, root.get(Trie.fromString("d"), TEXT))));
+		other.refresh();
+		assertNotSame(plan, other.getPlan());
+		assertEquals(4, other.getPlan().size());
+	}
+
+	@Test
+	public void signature_01() throws Exception {
+		// Dependents are only rebuilt when signatures of used declarations change
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		project.setSignatures(BuildProjectTests::signature);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "f:int=1;g:int=2");
+		Path.Entry<String> b = create(project, "b", null);
+		project.add(rule(new Use(project, b, log, a, "f")));
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(1, log.size());
+		// Change body of used declaration
+		a.write("f:int=5;g:int=2");
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(1, log.size());
+		// Change signature of unused declaration
+		a.write("f:int=5;g:bool=2");
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(1, log.size());
+		// Change signature of used declaration
+		a.write("f:bool=5;g:bool=2");
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(2, log.size());
+		assertEquals("f:bool", read(project, "b"));
+	}
+
+	@Test
+	public void meter_01() throws Exception {
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		RecordingMeter meter = new RecordingMeter("build");
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, meter).get());
+		// One event for each task, and one for the build itself
+		List<RecordingMeter.Event> events = meter.getEvents();
+		assertEquals(4, events.size());
+		assertEquals("build", events.get(0).name);
+		for (int i = 1; i != events.size(); ++i) {
+			assertEquals("build", events.get(i).parent);
+			assertEquals(1, events.get(i).depth);
+		}
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		meter.writeTrace(new PrintStream(bout));
+		String trace = bout.toString();
+		assertTrue(trace.startsWith("{\"traceEvents\":["));
+		assertTrue(trace.contains("\"name\":\"d\""));
+	}
+
+	@Test
+	public void cycle_01() throws Exception {
+		// Cycle: a => b => c => a
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		project.add(rule(new Concat(project, b, log, a), new Concat(project, c, log, b),
+				new Concat(project, a, log, c)));
+		try {
+			project.refresh();
+			fail("cycle not detected");
+		} catch (CyclicDependencyError e) {
+			List<Path.Entry<?>> chain = e.getChain();
+			assertEquals(4, chain.size());
+			assertSame(chain.get(0), chain.get(3));
+			// Each entry is used to build the next
+			List<Path.Entry<?>> order = Arrays.asList(a, b, c, a, b, c);
+			int start = order.indexOf(chain.get(0));
+			assertEquals(order.subList(start, start + 4), chain);
+		}
+	}
+
+	@Test
+	public void cycle_02() throws Exception {
+		// Self-loop: a => a
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		project.add(rule(new Concat(project, a, log, a)));
+		try {
+			project.refresh();
+			fail("cycle not detected");
+		} catch (CyclicDependencyError e) {
+			assertEquals(Arrays.asList(a, a), e.getChain());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void producers_01() throws Exception {
+		// Two tasks producing b
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		project.add(rule(new Concat(project, b, log, a), new Concat(project, b, log, a)));
+		project.refresh();
+	}
+
+	@Test
+	public void incremental_01() throws Exception {
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		List<String> log = chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		// Nothing changed, so nothing rebuilt
+		log.clear();
+		project.flush();
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Collections.EMPTY_LIST, log);
+		// Change the head of the chain, so everything rebuilt
+		project.getRoot().get(Trie.fromString("a"), TEXT).write("x");
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		assertEquals("xbcd", read(project, "d"));
+	}
+
+	@Test
+	public void incremental_02() throws Exception {
+		// Manifest persists across projects
+		Path.Root root = new VirtualRoot(REGISTRY);
+		SequentialBuildProject project = new SequentialBuildProject(root);
+		project.setManifest(Trie.fromString("build"));
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		project.flush();
+		//
+		SequentialBuildProject other = new SequentialBuildProject(root);
+		other.setManifest(Trie.fromString("build"));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = root.get(Trie.fromString("a"), TEXT);
+		Path.Entry<String> b = root.get(Trie.fromString("b"), TEXT);
+		Path.Entry<String> c = root.get(Trie.fromString("c"), TEXT);
+		Path.Entry<String> d = root.get(Trie.fromString("d"), TEXT);
+		other.add(rule(new Concat(other, d, log, c), new Concat(other, c, log, b), new Concat(other, b, log, a)));
+		other.refresh();
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Collections.EMPTY_LIST, log);
+	}
+
+	@Test
+	public void cutoff_01() throws Exception {
+		// Change to a which doesn't affect b means c not rebuilt
+		ParallelBuildProject project = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		project.add(rule(new Strip(project, b, log, a), new Concat(project, c, log, b)));
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c"), log);
+		// Change only a "comment"
+		log.clear();
+		a.write("a#");
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b"), log);
+		// Change something meaningful
+		log.clear();
+		a.write("x#");
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c"), log);
+		assertEquals("xc", read(project, "c"));
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void cache_01() throws Exception {
+		BuildCache cache = new BuildCache(folder.getRoot(), "1", 1024);
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		project.setCache(cache);
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		assertEquals(0, cache.getHits());
+		assertEquals(3, cache.getMisses());
+		// Identical inputs in a fresh project are restored from the cache
+		ParallelBuildProject other = new ParallelBuildProject(new VirtualRoot(REGISTRY));
+		other.setCache(new BuildCache(folder.getRoot(), "1", 1024));
+		List<String> log = chain(other);
+		other.refresh();
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Collections.EMPTY_LIST, log);
+		assertEquals("abcd", read(other, "d"));
+	}
+
+	@Test
+	public void cache_02() throws Exception {
+		// Least recently used outputs are evicted
+		BuildCache cache = new BuildCache(folder.getRoot(), "1", 5);
+		SequentialBuildProject project = new SequentialBuildProject(new VirtualRoot(REGISTRY));
+		project.setCache(cache);
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		// Outputs are "ab", "abc" and "abcd"
+		assertEquals(4, cache.size());
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void journal_01() throws Exception {
+		// An interrupted build resumes from where it stopped
+		File dir = folder.newFolder("src");
+		File journal = new File(folder.getRoot(), "build.journal");
+		SequentialBuildProject project = new SequentialBuildProject(new DirectoryRoot(dir, REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		project.setJournal(journal);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		a.flush();
+		project.add(rule(new Concat(project, b, log, a), new Concat(project, c, log, b), new Fail(project, d, c)));
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+		// NOTE: project is never flushed, hence the manifest is lost
+		ParallelBuildProject other = new ParallelBuildProject(new DirectoryRoot(dir, REGISTRY));
+		other.setManifest(Trie.fromString("build"));
+		other.setJournal(journal);
+		log = chain(other);
+		other.refresh();
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("d"), log);
+		assertEquals("abcd", read(other, "d"));
+		// Journal is cleared once the manifest is saved
+		long length = journal.length();
+		other.flush();
+		assertTrue(journal.length() < length);
+	}
+
+	@Test
+	public void journal_02() throws Exception {
+		// Pipelined intermediates which were never flushed are not replayed as up-to-date
+		File dir = folder.newFolder("src");
+		File journal = new File(folder.getRoot(), "build.journal");
+		SequentialBuildProject project = new SequentialBuildProject(new DirectoryRoot(dir, REGISTRY));
+		project.setManifest(Trie.fromString("build"));
+		project.setJournal(journal);
+		project.setPipelining(true);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		a.flush();
+		project.add(rule(new Concat(project, b, log, a), new Concat(project, c, log, b), new Fail(project, d, c)));
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+		project.flushAll();
+		// Rebuild after a change, leaving intermediates only in memory
+		a.write("x");
+		a.flush();
+		project.refresh();
+		assertFalse(project.build(executor, Build.NULL_METER).get());
+		// NOTE: project is never flushed, hence the manifest is lost
+		SequentialBuildProject other = new SequentialBuildProject(new DirectoryRoot(dir, REGISTRY));
+		other.setManifest(Trie.fromString("build"));
+		other.setJournal(journal);
+		log = chain(other);
+		other.getRoot().get(Trie.fromString("a"), TEXT).write("x");
+		other.refresh();
+		assertTrue(other.build(executor, Build.NULL_METER).get());
+		assertEquals(Arrays.asList("b", "c", "d"), log);
+		assertEquals("xbcd", read(other, "d"));
+	}
+
+	@Test
+	public void schedule_01() throws Exception {
+		// Task durations are recorded and persisted
+		VirtualRoot root = new VirtualRoot(REGISTRY);
+		ParallelBuildProject project = new ParallelBuildProject(root);
+		CriticalPathScheduler scheduler = new CriticalPathScheduler(root, Trie.fromString("build"));
+		project.setScheduler(scheduler);
+		chain(project);
+		project.refresh();
+		assertTrue(project.build(executor, Build.NULL_METER).get());
+		scheduler = new CriticalPathScheduler(root, Trie.fromString("build"));
+		for (Build.Task task : project.getTasks()) {
+			assertNotNull(scheduler.getDuration(task));
+		}
+	}
+
+	@Test
+	public void schedule_02() throws Exception {
+		// Ready tasks on the critical path are executed first: a => b, a => c => d
+		VirtualRoot root = new VirtualRoot(REGISTRY);
+		ParallelBuildProject project = new ParallelBuildProject(root);
+		CriticalPathScheduler scheduler = new CriticalPathScheduler(root, Trie.fromString("build"));
+		project.setScheduler(scheduler);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		Concat tb = new Concat(project, b, log, a);
+		Concat tc = new Concat(project, c, log, a);
+		Concat td = new Concat(project, d, log, c);
+		project.add(rule(tb, tc, td));
+		project.refresh();
+		scheduler.record(tb, 1000000);
+		scheduler.record(tc, 10000);
+		scheduler.record(td, 10000000);
+		// Hold the only thread until both b and c are ready
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			CountDownLatch latch = new CountDownLatch(1);
+			single.submit(() -> {
+				latch.await();
+				return null;
+			});
+			Future<Boolean> result = project.build(single, Build.NULL_METER);
+			latch.countDown();
+			assertTrue(result.get());
+		} finally {
+			single.shutdownNow();
+		}
+		assertEquals(Arrays.asList("c", "d", "b"), log);
+	}
+
+	// ======================================================================
+	// Helpers
+	// ======================================================================
+
+	/**
+	 * Construct a simple chain of tasks: a => b => c => d.
+	 */
+	private static List<String> chain(SequentialBuildProject project) throws IOException {
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Path.Entry<String> a = create(project, "a", "a");
+		Path.Entry<String> b = create(project, "b", null);
+		Path.Entry<String> c = create(project, "c", null);
+		Path.Entry<String> d = create(project, "d", null);
+		// NOTE: deliberately out of order
+		project.add(rule(new Concat(project, d, log, c), new Concat(project, c, log, b),
+				new Concat(project, b, log, a)));
+		return log;
+	}
+
+	private static Path.Entry<String> create(Build.Project project, String name, String contents)
+			throws IOException {
+		Path.Entry<String> e = project.getRoot().create(Trie.fromString(name), TEXT);
+		if (contents != null) {
+			e.write(contents);
+		}
+		return e;
+	}
+
+	private static String read(Build.Project project, String name) throws IOException {
+		return project.getRoot().get(Trie.fromString(name), TEXT).read();
+	}
+
+	private static Build.Rule rule(Build.Task... tasks) {
+		return (ts) -> ts.addAll(Arrays.asList(tasks));
+	}
+
+	/**
+	 * Construct a pool of in-process workers, each running on its own thread.
+	 */
+	private static WorkerPool workers(int n) throws IOException {
+		String token = WorkerPool.newToken();
+		try (ServerSocket server = new ServerSocket(0, n, InetAddress.getLoopbackAddress())) {
+			for (int i = 0; i != n; ++i) {
+				worker(server, token, handlers());
+			}
+			return new WorkerPool(server, n, token);
+		}
+	}
+
+	/**
+	 * Start an in-process worker on its own thread, which connects to a given
+	 * server socket using a given token.
+	 */
+	private static void worker(ServerSocket server, String token, Map<String, BuildWorker.Handler> handlers) {
+		Thread t = new Thread(() -> {
+			try {
+				new BuildWorker(handlers).serve(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+						token);
+			} catch (IOException e) {
+				// worker terminated
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static Map<String, BuildWorker.Handler> handlers() {
+		Map<String, BuildWorker.Handler> handlers = new HashMap<>();
+		handlers.put("concat", (sources) -> {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (byte[] bytes : sources) {
+				out.write(bytes);
+			}
+			out.write('!');
+			return out.toByteArray();
+		});
+		handlers.put("fail", (sources) -> null);
+		return handlers;
+	}
+
+	private static List<String> sorted(List<String> items) {
+		ArrayList<String> r = new ArrayList<>(items);
+		Collections.sort(r);
+		return r;
+	}
+
+	/**
+	 * A rule which executes a given set of tasks in batches, recording the size of
+	 * each batch.
+	 */
+	private static class BatchRule implements Build.BatchRule {
+		private final int max;
+		private final List<Integer> batches;
+		private final List<Build.Task> tasks;
+
+		public BatchRule(int max, List<Integer> batches, List<Build.Task> tasks) {
+			this.max = max;
+			this.batches = batches;
+			this.tasks = tasks;
+		}
+
+		@Override
+		public void apply(Collection<Build.Task> ts) {
+			ts.addAll(tasks);
+		}
+
+		@Override
+		public int getMaxBatchSize() {
+			return max;
+		}
+
+		@Override
+		public boolean[] execute(List<Build.Task> batch, Build.Meter meter) throws IOException {
+			batches.add(batch.size());
+			boolean[] results = new boolean[batch.size()];
+			for (int i = 0; i != batch.size(); ++i) {
+				results[i] = batch.get(i).initialise().apply(meter);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * A simple rule which maps each text file in a source root to a corresponding
+	 * file in a binary root.
+	 */
+	private static class CopyRule extends AbstractBuildRule<String, String> {
+		private final Build.Project project;
+		private final Path.Root bin;
+		private final List<String> log;
+
+		public CopyRule(Build.Project project, Path.Root src, Path.Root bin, List<String> log) {
+			super(src, Content.filter("**", TEXT), null);
+			this.project = project;
+			this.bin = bin;
+			this.log = log;
+		}
+
+		@Override
+		protected void apply(List<Path.Entry<String>> matches, Collection<Build.Task> tasks) throws IOException {
+			for (Path.Entry<String> m : matches) {
+				tasks.add(new Concat(project, bin.create(m.id(), TEXT), log, m));
+			}
+		}
+	}
+
+	/**
+	 * A simple task which concatenates its sources together, and appends the name
+	 * of its target.
+	 */
+	private static class Concat extends AbstractBuildTask<String, String> {
+		private final List<String> log;
+
+		@SafeVarargs
+		public Concat(Build.Project project, Path.Entry<String> target, List<String> log,
+				Path.Entry<String>... sources) {
+			super(project, target, Arrays.asList(sources));
+			this.log = log;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			return (meter) -> {
+				try {
+					String r = "";
+					for (Path.Entry<String> s : sources) {
+						r += s.read();
+					}
+					target.write(r + target.id().last());
+					log.add(target.id().last());
+					return true;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * A simple task which strips "comments" (i.e. '#' characters) from its source.
+	 */
+	private static class Strip extends AbstractBuildTask<String, String> {
+		private final List<String> log;
+
+		public Strip(Build.Project project, Path.Entry<String> target, List<String> log, Path.Entry<String> source) {
+			super(project, target, Arrays.asList(source));
+			this.log = log;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			return (meter) -> {
+				try {
+					target.write(sources.get(0).read().replace("#", ""));
+					log.add(target.id().last());
+					return true;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			};
+		}
+	}
+
+	/**
+	 * A task which should never be initialised.
+	 */
+	private static class Unreachable extends AbstractBuildTask<String, String> {
+		@SafeVarargs
+		public Unreachable(Build.Project project, Path.Entry<String> target, Path.Entry<String>... sources) {
+			super(project, target, Arrays.asList(sources));
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			throw new IllegalStateException("task should not be initialised");
+		}
+	}
+
+	/**
+	 * A task which runs until the build is cancelled.
+	 */
+	private static class Spin extends AbstractBuildTask<String, String> {
+		private final CountDownLatch started;
+		private final CountDownLatch aborted;
+
+		@SafeVarargs
+		public Spin(Build.Project project, Path.Entry<String> target, CountDownLatch started, CountDownLatch aborted,
+				Path.Entry<String>... sources) {
+			super(project, target, Arrays.asList(sources));
+			this.started = started;
+			this.aborted = aborted;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			return (meter) -> {
+				started.countDown();
+				while (!meter.isCancelled()) {
+					Thread.yield();
+				}
+				aborted.countDown();
+				return false;
+			};
+		}
+	}
+
+	/**
+	 * Determine the signature of a declaration of the form "name:type=value",
+	 * which is just its type.
+	 */
+	private static long signature(Path.Entry<?> entry, AbstractCompilationUnit.Name name) throws IOException {
+		for (String decl : ((String) entry.read()).split(";")) {
+			String[] parts = decl.split("[:=]");
+			if (parts[0].equals(name.toString())) {
+				return parts[1].hashCode();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * A task which uses a single declaration from its source, writing its
+	 * signature to the target.
+	 */
+	private static class Use extends AbstractBuildTask<String, String> implements Build.FineGrainedTask {
+		private final List<String> log;
+		private final String name;
+
+		public Use(Build.Project project, Path.Entry<String> target, List<String> log, Path.Entry<String> source,
+				String name) {
+			super(project, target, Arrays.asList(source));
+			this.log = log;
+			this.name = name;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			return (meter) -> {
+				try {
+					for (String decl : sources.get(0).read().split(";")) {
+						if (decl.startsWith(name + ":")) {
+							target.write(decl.substring(0, decl.indexOf('=')));
+						}
+					}
+					log.add(target.id().last());
+					return true;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			};
+		}
+
+		@Override
+		public Map<Path.Entry<?>, List<AbstractCompilationUnit.Name>> getUsedDeclarations() {
+			Map<Path.Entry<?>, List<AbstractCompilationUnit.Name>> used = new HashMap<>();
+			used.put(sources.get(0),
+					Arrays.asList(new AbstractCompilationUnit.Name(new AbstractCompilationUnit.Identifier(name))));
+			return used;
+		}
+	}
+
+	/**
+	 * A task with a given weight which records the maximum weight of tasks
+	 * executing at once.
+	 */
+	private static class Heavy extends Concat {
+		private final long weight;
+		private final AtomicInteger current;
+		private final AtomicInteger max;
+
+		@SafeVarargs
+		public Heavy(Build.Project project, Path.Entry<String> target, long weight, AtomicInteger current,
+				AtomicInteger max, Path.Entry<String>... sources) {
+			super(project, target, new ArrayList<>(), sources);
+			this.weight = weight;
+			this.current = current;
+			this.max = max;
+		}
+
+		@Override
+		public long getWeight() {
+			return weight;
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			Function<Build.Meter, Boolean> f = super.initialise();
+			return (meter) -> {
+				int w = current.addAndGet((int) weight);
+				try {
+					// NOTE: a task exceeding the budget by itself may run alone
+					if (w != weight || w <= 2) {
+						max.accumulateAndGet(w, Math::max);
+					}
+					Thread.sleep(10);
+					return f.apply(meter);
+				} catch (InterruptedException e) {
+					return false;
+				} finally {
+					current.addAndGet((int) -weight);
+				}
+			};
+		}
+	}
+
+	/**
+	 * A simple task which always fails.
+	 */
+	private static class Fail extends AbstractBuildTask<String, String> {
+		@SafeVarargs
+		public Fail(Build.Project project, Path.Entry<String> target, Path.Entry<String>... sources) {
+			super(project, target, Arrays.asList(sources));
+		}
+
+		@Override
+		public Function<Build.Meter, Boolean> initialise() throws IOException {
+			return (meter) -> false;
+		}
+	}
+}
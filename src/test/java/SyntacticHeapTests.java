@@ -0,0 +1,361 @@
+// Copyright 2011 The Whiley Project Developers
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.*;
+
+import wybs.lang.SyntacticHeap;
+import wybs.lang.SyntacticItem;
+import wybs.util.AbstractCompilationUnit;
+import wybs.util.AbstractCompilationUnit.Identifier;
+import wybs.util.AbstractCompilationUnit.Name;
+import wybs.util.AbstractCompilationUnit.Pair;
+import wybs.util.AbstractCompilationUnit.Ref;
+import wybs.util.AbstractCompilationUnit.Tuple;
+import wybs.util.AbstractCompilationUnit.Value;
+import wybs.util.AbstractSyntacticHeap;
+import wybs.util.SyntacticHeapWalker;
+
+public class SyntacticHeapTests {
+
+	@Test
+	public void parents_01() {
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		Tuple<SyntacticItem> root = new Tuple<>(new Pair<>(x, new Identifier("y")), x);
+		heap.setRootItem(root);
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		Pair<?, ?> p = (Pair<?, ?>) t.get(0);
+		SyntacticItem hx = p.getFirst();
+		assertEquals(Arrays.asList(t, p), hx.getParents(SyntacticItem.class));
+		assertEquals(p, hx.getParent(Pair.class));
+		assertEquals(t, p.getSecond().getAncestor(Tuple.class));
+		assertNull(t.getParent(SyntacticItem.class));
+	}
+
+	@Test
+	public void parents_02() {
+		// Parents are updated when operands change
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		heap.setRootItem(new Tuple<>(new Pair<>(x, new Identifier("y")), x));
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		Pair<?, ?> p = (Pair<?, ?>) t.get(0);
+		SyntacticItem hx = p.getFirst();
+		assertEquals(2, hx.getParents(SyntacticItem.class).size());
+		Identifier z = heap.allocate(new Identifier("z"));
+		heap.replace(hx, z);
+		assertEquals(0, hx.getParents(SyntacticItem.class).size());
+		assertEquals(Arrays.asList(t, p), z.getParents(SyntacticItem.class));
+		// Indices change during garbage collection
+		int size = heap.size();
+		heap.gc();
+		assertEquals(size - 1, heap.size());
+		assertEquals(Arrays.asList(t, p), z.getParents(SyntacticItem.class));
+	}
+
+	@Test
+	public void parents_03() {
+		// References are not followed when looking for ancestors
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		heap.setRootItem(new Tuple<>(new Ref<>(x), new Pair<>(x, x)));
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		SyntacticItem hx = ((Pair<?, ?>) t.get(1)).getFirst();
+		assertEquals(3, hx.getParents(SyntacticItem.class).size());
+		assertEquals(t, hx.getAncestor(Tuple.class));
+		assertNull(hx.getAncestor(Ref.class));
+	}
+
+	@Test
+	public void parents_04() {
+		// Index agrees with an exhaustive search after many random updates
+		Random random = new Random(1);
+		Heap heap = new Heap();
+		SyntacticItem[] items = new SyntacticItem[50];
+		for (int i = 0; i != items.length; ++i) {
+			items[i] = new Identifier("x" + i);
+		}
+		heap.setRootItem(new Tuple<>(items));
+		Tuple<?> root = (Tuple<?>) heap.getRootItem();
+		for (int i = 0; i != 20; ++i) {
+			heap.allocate(new Pair<>(root.get(random.nextInt(50)), root.get(random.nextInt(50))));
+		}
+		for (int i = 0; i != 500; ++i) {
+			SyntacticItem parent = heap.getSyntacticItem(random.nextInt(heap.size()));
+			if (parent.size() > 0) {
+				parent.setOperand(random.nextInt(parent.size()), root.get(random.nextInt(50)));
+			}
+			SyntacticItem child = root.get(random.nextInt(50));
+			assertEquals(scan(heap, child), child.getParents(SyntacticItem.class));
+		}
+	}
+
+	@Test
+	public void parents_05() {
+		// Items swept during garbage collection are not indexed
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		heap.setRootItem(new Tuple<>(new Pair<>(x, new Identifier("y")), x));
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		Pair<?, ?> p = (Pair<?, ?>) t.get(0);
+		SyntacticItem hx = t.get(1);
+		Identifier z = heap.allocate(new Identifier("z"));
+		heap.replace(p, z);
+		assertEquals(Arrays.asList(t, p), hx.getParents(SyntacticItem.class));
+		heap.gc();
+		assertEquals(Arrays.asList(t), hx.getParents(SyntacticItem.class));
+		// Swept items retain their stale index
+		assertEquals(Collections.emptyList(), p.getParents(SyntacticItem.class));
+		assertEquals(Collections.emptyList(), p.getSecond().getParents(SyntacticItem.class));
+		// Updating a swept item does not affect the index
+		p.setOperand(1, z);
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem child = heap.getSyntacticItem(i);
+			assertEquals(scan(heap, child), child.getParents(SyntacticItem.class));
+		}
+	}
+
+	@Test
+	public void index_01() {
+		Heap heap = new Heap();
+		heap.setRootItem(new Tuple<>(new Identifier("x"), new Identifier("x")));
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		// Structurally equal items are distinguished
+		assertEquals(1, heap.getIndexOf(t.get(0)));
+		assertEquals(2, heap.getIndexOf(t.get(1)));
+		assertArrayEquals(new int[] { 2, 0, 1 }, heap.indexOf(new SyntacticItem[] { t.get(1), t, t.get(0) }));
+		// Items not allocated to this heap are rejected
+		try {
+			heap.getIndexOf(new Identifier("x"));
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+		}
+		Heap other = new Heap();
+		other.setRootItem(new Identifier("x"));
+		try {
+			heap.indexOf(new SyntacticItem[] { t, other.getRootItem() });
+			fail("expected exception");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void kinds_01() {
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		heap.setRootItem(new Tuple<>(new Pair<>(x, new Identifier("y")), x));
+		heap.allocate(new Identifier("z"));
+		assertEquals(3, heap.getSyntacticItems(Identifier.class).size());
+		assertEquals(5, heap.getSyntacticItems(SyntacticItem.class).size());
+		assertEquals(heap.getSyntacticItems(Identifier.class),
+				heap.getSyntacticItems(AbstractCompilationUnit.ITEM_ident));
+		// Opcodes can change
+		SyntacticItem z = heap.getSyntacticItem(4);
+		z.setOpcode(AbstractCompilationUnit.ITEM_utf8);
+		assertEquals(2, heap.getSyntacticItems(AbstractCompilationUnit.ITEM_ident).size());
+		assertEquals(Arrays.asList(z), heap.getSyntacticItems(AbstractCompilationUnit.ITEM_utf8));
+		// Unreachable items are not found
+		assertEquals(2, heap.findAll(Identifier.class).size());
+		assertEquals(Collections.EMPTY_LIST, heap.findAll(Ref.class));
+	}
+
+	@Test
+	public void kinds_02() {
+		// Items are found in the same order as a traversal from the root
+		Random random = new Random(2);
+		Heap heap = new Heap();
+		heap.setRootItem(new Tuple<>(new Identifier("x")));
+		for (int i = 0; i != 200; ++i) {
+			SyntacticItem parent = heap.getSyntacticItem(random.nextInt(heap.size()));
+			SyntacticItem child = heap.getSyntacticItem(random.nextInt(heap.size()));
+			SyntacticItem item = heap.allocate(random.nextBoolean() ? new Pair<>(child, new Identifier("y" + i))
+					: new Tuple<>(child, child));
+			if (parent.size() > 0 && item.getIndex() > parent.getIndex()) {
+				// NOTE: avoid creating cycles
+				parent.setOperand(random.nextInt(parent.size()), item);
+			}
+			assertEquals(traverse(heap, Pair.class), heap.findAll(Pair.class));
+			assertEquals(traverse(heap, Identifier.class), heap.findAll(Identifier.class));
+		}
+	}
+
+	@Test
+	public void deep_01() {
+		// Long chains of operands do not overflow the stack
+		final int depth = 100000;
+		Heap heap = new Heap();
+		Identifier x = new Identifier("x");
+		SyntacticItem item = x;
+		for (int i = 0; i != depth; ++i) {
+			item = new Tuple<>(item);
+		}
+		heap.setRootItem(item);
+		assertEquals(depth + 1, heap.size());
+		SyntacticItem hx = heap.getSyntacticItem(depth);
+		assertEquals(Arrays.asList(hx), heap.findAll(Identifier.class));
+		assertSame(heap.getSyntacticItem(depth - 1), hx.getAncestor(Tuple.class));
+		assertNull(hx.getAncestor(Pair.class));
+		// Replacement
+		Identifier y = heap.allocate(new Identifier("y"));
+		heap.replace(hx, y);
+		heap.gc();
+		assertEquals(depth + 1, heap.size());
+		assertEquals(depth + 1, AbstractSyntacticHeap.findReachable(heap.getRootItem(), new BitSet()).cardinality());
+		// Cloning
+		SyntacticItem root = heap.getRootItem();
+		assertNotNull(AbstractSyntacticHeap.clone(root));
+		IdentityHashMap<SyntacticItem, SyntacticItem> mapping = new IdentityHashMap<>();
+		assertNotSame(root, AbstractSyntacticHeap.cloneOnly(root, mapping, Identifier.class));
+		assertEquals(depth + 1, mapping.size());
+		// Substitution
+		SyntacticItem nRoot = AbstractSyntacticHeap.substitute(root, y, new Identifier("z"));
+		assertNotSame(root, nRoot);
+		assertEquals(2 * (depth + 1), heap.size());
+	}
+
+	@Test
+	public void walk_01() {
+		// Shared items are entered each time they are reached
+		Identifier x = new Identifier("x");
+		Pair<?, ?> p = new Pair<>(x, new Identifier("y"));
+		Tuple<SyntacticItem> t = new Tuple<>(p, null, x);
+		ArrayList<String> events = new ArrayList<>();
+		SyntacticHeapWalker.walk(t, new SyntacticHeapWalker.Visitor() {
+			@Override
+			public boolean enter(SyntacticItem item) {
+				events.add("+" + name(item));
+				return !(item instanceof Identifier);
+			}
+
+			@Override
+			public void exit(SyntacticItem item) {
+				events.add("-" + name(item));
+			}
+		});
+		assertEquals(Arrays.asList("+t", "+p", "+x", "+y", "-p", "+x", "-t"), events);
+	}
+
+	@Test
+	public void intern_01() {
+		// Structurally equal leaves and names are shared
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		heap.setRootItem(internable());
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		assertSame(t.get(0), t.get(1));
+		assertSame(t.get(2), t.get(3));
+		assertSame(t.get(4), t.get(5));
+		assertNotSame(t.get(6), t.get(7));
+		// Tuple, x, a, b, a::b, 1 and two inner tuples
+		assertEquals(8, heap.size());
+		assertSame(t.get(0), heap.allocate(new Identifier("x")));
+		assertEquals(8, heap.size());
+		// Without interning, nothing is shared
+		Heap other = new Heap();
+		other.setRootItem(internable());
+		assertEquals(13, other.size());
+		// Interning existing heap
+		other.setInterning(true);
+		assertSame(other.getSyntacticItem(1), other.allocate(new Identifier("x")));
+	}
+
+	@Test
+	public void intern_02() {
+		// Interned items are rekeyed when their operands change
+		Heap heap = new Heap();
+		heap.setInterning(true);
+		heap.setRootItem(internable());
+		Tuple<?> t = (Tuple<?>) heap.getRootItem();
+		Name n = (Name) t.get(2);
+		Identifier a = (Identifier) n.get(0);
+		Identifier c = heap.allocate(new Identifier("c"));
+		heap.replace(a, c);
+		assertSame(c, n.get(0));
+		assertSame(n, heap.allocate(new Name(new Identifier("c"), new Identifier("b"))));
+		int size = heap.size();
+		Name m = heap.allocate(new Name(new Identifier("a"), new Identifier("b")));
+		assertNotSame(n, m);
+		assertSame(a, m.get(0));
+		assertEquals(size + 1, heap.size());
+	}
+
+	// ========================================================================
+	// Helpers
+	// ========================================================================
+
+	private static List<SyntacticItem> scan(SyntacticHeap heap, SyntacticItem child) {
+		ArrayList<SyntacticItem> parents = new ArrayList<>();
+		for (int i = 0; i != heap.size(); ++i) {
+			SyntacticItem parent = heap.getSyntacticItem(i);
+			for (int j = 0; j != parent.size(); ++j) {
+				if (parent.get(j) == child) {
+					parents.add(parent);
+				}
+			}
+		}
+		return parents;
+	}
+
+	private static List<SyntacticItem> traverse(SyntacticHeap heap, Class<?> kind) {
+		ArrayList<SyntacticItem> matches = new ArrayList<>();
+		traverse(heap.getRootItem(), kind, matches, new BitSet());
+		return matches;
+	}
+
+	private static void traverse(SyntacticItem item, Class<?> kind, List<SyntacticItem> matches, BitSet visited) {
+		if (item != null && !visited.get(item.getIndex())) {
+			visited.set(item.getIndex());
+			if (kind.isInstance(item)) {
+				matches.add(item);
+			}
+			for (int i = 0; i != item.size(); ++i) {
+				traverse(item.get(i), kind, matches, visited);
+			}
+		}
+	}
+
+	private static SyntacticItem internable() {
+		Identifier x = new Identifier("x");
+		return new Tuple<>(x, new Identifier("x"), new Name(new Identifier("a"), new Identifier("b")),
+				new Name(new Identifier("a"), new Identifier("b")), new Value.Int(1), new Value.Int(1), new Tuple<>(x),
+				new Tuple<>(x));
+	}
+
+	private static String name(SyntacticItem item) {
+		if (item instanceof Identifier) {
+			return ((Identifier) item).get();
+		} else {
+			return (item instanceof Pair) ? "p" : "t";
+		}
+	}
+
+	/**
+	 * A minimal heap for testing purposes.
+	 */
+	private static class Heap extends AbstractSyntacticHeap {
+		@Override
+		public SyntacticHeap getParent() {
+			return null;
+		}
+	}
+}